@@ -33,12 +33,41 @@ public class Globals
   public static final String LOCKS_FOLDER_PATH = "Locks/";
   public static final int THREAD_TIMEOUT = 15000;
   public static final int TX_GROUPS = 20;
-  // Used in Lock policies
-  public static final int NO_MOD_LOCK = 100;
-  public static final int REFUSE_LOCK = -100;
-  public static final int UPDATE_OLD_LOCK = 50;
-  public static final int ADD_NEW_LOCK = 1;
-  public static final int MOVE_LOCK_BOUNDS = 200;
+  // Size of the windows used by an XAFile in memory-mapped mode
+  public static final int MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+  // Group commit of an XAFile (window in milliseconds)
+  public static final long GROUP_COMMIT_WINDOW = 0;
+  public static final int GROUP_COMMIT_BATCH_SIZE = 64;
+  // Number of bytes read at a time by XAFile.readLine
+  public static final int SCAN_CHUNK_SIZE = 128;
+  // Number of bytes locked and buffered at a time by XAFile.transferTo/From
+  public static final int TRANSFER_CHUNK_SIZE = 1024 * 1024;
+  // Bytes of the file within which the updates of a Transaction are merged into one extent
+  public static final int WRITE_SET_EXTENT_SIZE = 1024 * 1024;
+  // Lock journal: records preallocated at a time and records before compaction
+  public static final int LOCK_JOURNAL_PREALLOCATE = 1024;
+  public static final int LOCK_JOURNAL_COMPACT_RECORDS = 4096;
+  // Lock stripes of an XALockManager and the bytes of each segment of a stripe
+  public static final int LOCK_STRIPES = 16;
+  public static final long LOCK_SEGMENT_SIZE = 1024 * 1024;
+  // Maximum time in ms a Transaction may wait for locks over all its calls (0 = no limit)
+  public static final long LOCK_TRANSACTION_TIMEOUT = 0;
+  // Exclude other processes through OS locks on a sidecar lock file, polled every LOCK_POLL_INTERVAL ms
+  public static final boolean LOCK_INTER_PROCESS = false;
+  public static final long LOCK_POLL_INTERVAL = 50;
+  // Ranges held by a Transaction, or fraction of the file size they cover, escalating it to a whole-file lock (0 = off)
+  public static final int LOCK_ESCALATION_COUNT = 0;
+  public static final double LOCK_ESCALATION_FRACTION = 0;
+  // Write-ahead log of an XAFile: bytes to which a segment is preallocated and
+  // reclaimed or spare segments kept for reuse
+  public static final long LOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+  public static final int LOG_SEGMENT_POOL = 4;
+  // Bytes of log records a Transaction buffers before appending them to the write-ahead log
+  public static final int LOG_BUFFER_SIZE = 64 * 1024;
+  // Distinct bytes a Transaction updates before the final images of its updates are logged
+  public static final int LOG_COALESCE_SIZE = 256 * 1024;
+  // Bytes of the segments of a write-ahead log read at a time when it is scanned
+  public static final int LOG_SCAN_BUFFER_SIZE = 1024 * 1024;
   // Recovery
   public static final long RECOVERY_ID = -100;
 
@@ -0,0 +1,50 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.exceptions;
+
+/**
+ * Signals that a lock cannot be granted because the Transaction waiting
+ * for it is part of a deadlock and has been chosen as its victim.
+ * <p>
+ * The exception is thrown at once, when the deadlock is detected, rather than
+ * after the lock timeout, so the Transaction can be rolled back and retried.
+ * As the lock is refused, it is a {@link LockRefusedException}.
+ *
+ * @see org.jboss.jbossts.fileio.xalib.txfiles.locking.VictimPolicy
+ */
+public class DeadlockException extends LockRefusedException {
+  /**
+   * Constructs a <code>DeadlockException</code> with <code>null</code>
+   * as its error detail message.
+   */
+  public DeadlockException() {
+    super();
+  }
+
+  /**
+   * Constructs a <code>DeadlockException</code> with the
+   * given <code>msg</code> as its detail message.
+   *
+   * @param msg the detail message
+   */
+  public DeadlockException(String msg) {
+    super(msg);
+  }
+}
@@ -19,8 +19,6 @@
  */
 package org.jboss.jbossts.fileio.xalib.txfiles.file;
 
-import org.jboss.jbossts.fileio.xalib.txfiles.file.XAFile;
-
 import java.io.Serializable;
 import java.io.IOException;
 
@@ -35,7 +33,8 @@ public class DataRecord implements Serializable
 {
   private long startPoint;
   private int recordLength;
-  private int[] recordBytes;
+  private int recordOffset;
+  private byte[] recordBytes;
 
   /**
    * Constructor to create <code>DataRecord</code> objects to be used while
@@ -49,20 +48,31 @@ public class DataRecord implements Serializable
    * @param recordBytes the actual updated bytes
    * @exception  IOException if an I/O error occurs
    */
-  protected DataRecord(long startPoint, int recordLength, int[] recordBytes)
+  protected DataRecord(long startPoint, int recordLength, byte[] recordBytes)
       throws IOException {
-    this.startPoint = startPoint;
-    this.recordLength = recordLength;
-    this.recordBytes = recordBytes;
+    this(startPoint, recordBytes, 0, recordLength);
   }
 
   /**
-   * Returns the updated bytes as an array of <code>Integer</code>s.
-   * @return an array of <code>int</code>s that contains the updated
-   *         bytes
+   * Constructor to create a <code>DataRecord</code> which refers to a slice
+   * of the given <code>recordBytes</code> array. The array is not copied, so
+   * write operations can pass their arguments straight through to the log and
+   * the file without any intermediate buffers.
+   *
+   * @param startPoint the position in the file of the byte found at
+   *                   <code>recordBytes[recordOffset]</code>
+   * @param recordBytes the array holding the actual updated bytes
+   * @param recordOffset the index in <code>recordBytes</code> of the first byte
+   *                     of this record
+   * @param recordLength the length of the updated bytes to commit
+   * @exception  IOException if an I/O error occurs
    */
-  protected int[] getIntBytes() {
-    return recordBytes;
+  protected DataRecord(long startPoint, byte[] recordBytes, int recordOffset,
+                       int recordLength) throws IOException {
+    this.startPoint = startPoint;
+    this.recordLength = recordLength;
+    this.recordOffset = recordOffset;
+    this.recordBytes = recordBytes;
   }
 
   /**
@@ -91,31 +101,46 @@ public class DataRecord implements Serializable
    *         this record
    */
   protected String getRecordStr() {
-    return toString(getIntBytes());
+    return toString(recordBytes, recordOffset, recordLength);
   }
 
   /**
-   * Returns a <code>byte</code> array which contains the updated bytes
-   * held by this record.
-   * @return an array of bytes which are the updates held by this record
+   * Returns the <code>byte</code> array which contains the updated bytes
+   * held by this record. The array is shared, not copied, and the bytes
+   * of this record start at index <code>getRecordOffset()</code>.
+   * @return the array of bytes which holds the updates of this record
    */
   protected byte[] getRecordBytes() {
-    return XAFile.getBytesFromInts(recordBytes);
+    return recordBytes;
+  }
+
+  /**
+   * Returns the index in the <code>getRecordBytes()</code> array of
+   * the first byte of this record.
+   * @return the offset of this record within its byte array
+   */
+  protected int getRecordOffset() {
+    return recordOffset;
   }
 
   /**
-   * Converts the given <code>ints</code> array into a <code>String</code>
-   * used to display a more readable representation of the updated bytes
-   * held by this record.
-   * @param ints the array of updated bytes to convert
+   * Converts a slice of the given <code>bytes</code> array into a
+   * <code>String</code> used to display a more readable representation of
+   * the updated bytes held by this record.
+   * @param bytes the array of updated bytes to convert
+   * @param off the index of the first byte to convert
+   * @param len the number of bytes to convert
    * @return a <code>String</code> that incluldes the updated bytes in a
    *         readable format
    */
-  private String toString(int[] ints) {
-    String txt = "[ ";
-    for (int i : ints) {
-      txt += i + ", ";
+  private String toString(byte[] bytes, int off, int len) {
+    if (len == 0)
+      return "[ ]";
+    StringBuilder txt = new StringBuilder("[ ");
+    for (int i = off; i < off + len; i++) {
+      txt.append(bytes[i] & 0xFF).append(", ");
     }
-    return txt.substring(0, txt.length() - 2) + " ]";
+    txt.setLength(txt.length() - 2);
+    return txt.append(" ]").toString();
   }
 }
\ No newline at end of file
@@ -0,0 +1,206 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.file;
+
+import java.io.IOException;
+
+/**
+ * This class amortises the cost of forcing a file to the storage device
+ * over the Transactions which commit at the same time.
+ * <p>
+ * Each Transaction calls {@link #sync()} when it needs its updates to be
+ * durable. The first caller becomes the leader of a batch: it waits up to
+ * <code>window</code> milliseconds, or until <code>batchSize</code>
+ * Transactions have joined the batch, then forces the file once and
+ * releases all the Transactions of the batch. Transactions which call
+ * <code>sync</code> while a batch is being forced join the next batch, so
+ * batches form under load even when the window is <code>0</code>.
+ * <p>
+ * The number and the sizes of the batches are counted to help choosing the
+ * window and the batch size.
+ *
+ * @see XAFile#setGroupCommit(long, int)
+ */
+public abstract class GroupCommit
+{
+  private long window;
+  private int batchSize;
+  private Batch current;
+  private boolean forcing;
+  private long batches;
+  private long requests;
+  private int lastBatchSize;
+  private int maxBatchSize;
+
+  /**
+   * Constructor to create a <code>GroupCommit</code> coordinator.
+   *
+   * @param window the maximum time in milliseconds the leader of a batch
+   *               waits for other Transactions to join it
+   * @param batchSize the number of Transactions after which a batch is
+   *                  forced without waiting for the window to expire
+   */
+  protected GroupCommit(long window, int batchSize) {
+    if (window < 0 || batchSize <= 0)
+      throw new IllegalArgumentException("window=" + window + ", batchSize=" + batchSize);
+    this.window = window;
+    this.batchSize = batchSize;
+    current = new Batch();
+  }
+
+  /**
+   * Forces the underlying file to the storage device. It is invoked by
+   * the leader of each batch, without holding the lock of this object.
+   *
+   * @exception IOException if an I/O error occurs
+   */
+  protected abstract void force() throws IOException;
+
+  /**
+   * Returns when everything written before the call has been forced to
+   * the storage device, either by this thread or by the leader of the
+   * batch it joined.
+   *
+   * @exception IOException if an I/O error occurs while forcing the
+   *            batch this call joined
+   */
+  public void sync() throws IOException {
+    Batch batch;
+    boolean interrupted = false;
+    synchronized (this) {
+      batch = current;
+      batch.size++;
+      notifyAll();
+      while (!batch.done && forcing)
+        interrupted |= waitUninterruptibly(0);
+      if (batch.done) {
+        if (interrupted)
+          Thread.currentThread().interrupt();
+        batch.check();
+        return;
+      }
+
+      forcing = true;
+      long deadline = System.currentTimeMillis() + window;
+      long remaining = window;
+      while (batch.size < batchSize && remaining > 0) {
+        interrupted |= waitUninterruptibly(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+      current = new Batch();
+    }
+
+    IOException failure = null;
+    try {
+      force();
+    } catch (IOException ioe) {
+      failure = ioe;
+    }
+
+    synchronized (this) {
+      batch.done = true;
+      batch.failure = failure;
+      batches++;
+      requests += batch.size;
+      lastBatchSize = batch.size;
+      if (batch.size > maxBatchSize)
+        maxBatchSize = batch.size;
+      forcing = false;
+      notifyAll();
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    batch.check();
+  }
+
+  /**
+   * Returns the number of batches forced so far.
+   * @return the number of calls to {@link #force()}
+   */
+  public synchronized long getBatches() {
+    return batches;
+  }
+
+  /**
+   * Returns the number of <code>sync</code> calls served so far.
+   * @return the number of Transactions released by the forced batches
+   */
+  public synchronized long getRequests() {
+    return requests;
+  }
+
+  /**
+   * Returns the size of the last batch forced.
+   * @return the number of Transactions released by the last batch
+   */
+  public synchronized int getLastBatchSize() {
+    return lastBatchSize;
+  }
+
+  /**
+   * Returns the size of the largest batch forced so far.
+   * @return the largest number of Transactions released by one batch
+   */
+  public synchronized int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * Returns the mean size of the batches forced so far.
+   * @return the number of requests divided by the number of batches
+   */
+  public synchronized double getAverageBatchSize() {
+    return batches == 0 ? 0 : (double) requests / batches;
+  }
+
+  /**
+   * Waits on this object, ignoring interrupts as a batch must not be
+   * left without a leader. The caller restores the interrupt status
+   * once it stops waiting.
+   * @return true if the thread was interrupted while waiting
+   */
+  private boolean waitUninterruptibly(long timeout) {
+    try {
+      wait(timeout);
+      return false;
+    } catch (InterruptedException ie) {
+      return true;
+    }
+  }
+
+  /**
+   * The Transactions which are forced to the storage device by
+   * the same call to {@link GroupCommit#force()}.
+   */
+  private static class Batch
+  {
+    private int size;
+    private boolean done;
+    private IOException failure;
+
+    private void check() throws IOException {
+      if (failure != null) {
+        IOException ioe = new IOException("Failed to force the file: " + failure.getMessage());
+        ioe.initCause(failure);
+        throw ioe;
+      }
+    }
+  }
+}
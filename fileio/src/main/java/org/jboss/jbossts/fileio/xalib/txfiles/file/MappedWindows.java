@@ -0,0 +1,206 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.jbossts.fileio.xalib.Globals;
+
+/**
+ * This class serves the reads and the committed writes of an {@link XAFile}
+ * in memory-mapped mode.
+ * <p>
+ * The file is divided into windows of <code>Globals.MAPPED_WINDOW_SIZE</code>
+ * bytes, each of which is mapped by a <code>MappedByteBuffer</code> the first
+ * time it is accessed. A window that has been mapped while the file was
+ * shorter is re-mapped once the file has grown past its end. Bytes beyond the
+ * end of the file can not be mapped, so writes that extend the file are left
+ * to the caller, which writes them through the file's channel.
+ * <p>
+ * Windows written to are remembered until <code>force</code> is called
+ * to write them to the storage device. They are remembered by identity, as
+ * buffers compare their contents; a window which has been re-mapped since
+ * is still forced.
+ *
+ * @see XAFile#setMemoryMapped(boolean)
+ */
+public class MappedWindows
+{
+  private FileChannel channel;
+  private FileChannel.MapMode mapMode;
+  private Map<Long, MappedByteBuffer> windows;
+  private Set<MappedByteBuffer> dirtyWindows;
+
+  /**
+   * Constructor to create <code>MappedWindows</code> on the given channel.
+   *
+   * @param channel the channel of the file to map
+   * @param readOnly true if the file has been opened in <code>r</code> mode
+   */
+  protected MappedWindows(FileChannel channel, boolean readOnly) {
+    this.channel = channel;
+    mapMode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+    windows = new HashMap<Long, MappedByteBuffer>();
+    dirtyWindows = Collections.newSetFromMap(new IdentityHashMap<MappedByteBuffer, Boolean>());
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes starting at <code>position</code>
+   * from the mapped windows.
+   *
+   * @param position the position in the file of the first byte to read
+   * @param bytes the buffer into which the data is read
+   * @param off the start offset in <code>bytes</code>
+   * @param len the number of bytes to read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
+   * @exception IOException if an I/O error occurs while mapping the file
+   */
+  protected int read(long position, byte[] bytes, int off, int len) throws IOException {
+    return read(position, ByteBuffer.wrap(bytes, off, len));
+  }
+
+  /**
+   * Reads up to <code>dst.remaining()</code> bytes starting at
+   * <code>position</code> from the mapped windows into the given buffer.
+   * The position of the buffer is advanced by the number of bytes read.
+   *
+   * @param position the position in the file of the first byte to read
+   * @param dst the buffer into which the data is read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
+   * @exception IOException if an I/O error occurs while mapping the file
+   */
+  protected int read(long position, ByteBuffer dst) throws IOException {
+    int len = dst.remaining();
+    int n = 0;
+    while (n < len) {
+      ByteBuffer window = getWindow(position + n, true);
+      if (window == null)
+        break;
+      int count = Math.min(len - n, window.remaining());
+      window.limit(window.position() + count);
+      dst.put(window);
+      n += count;
+    }
+    return (n == 0 && len > 0) ? -1 : n;
+  }
+
+  /**
+   * Writes as many of the <code>len</code> bytes as fit within the current
+   * length of the file into the mapped windows.
+   *
+   * @param position the position in the file to write the first byte
+   * @param data the bytes to write
+   * @param off the index in <code>data</code> of the first byte to write
+   * @param len the number of bytes to write
+   * @return the number of bytes written; the remaining bytes lie beyond the
+   *         end of the file
+   * @exception IOException if an I/O error occurs while mapping the file
+   */
+  protected int write(long position, byte[] data, int off, int len) throws IOException {
+    return write(position, ByteBuffer.wrap(data, off, len));
+  }
+
+  /**
+   * Writes as many of the remaining bytes of <code>src</code> as fit within
+   * the current length of the file into the mapped windows. The position
+   * of the buffer is advanced by the number of bytes written.
+   *
+   * @param position the position in the file to write the first byte
+   * @param src the buffer holding the bytes to write
+   * @return the number of bytes written; the remaining bytes lie beyond the
+   *         end of the file
+   * @exception IOException if an I/O error occurs while mapping the file
+   */
+  protected int write(long position, ByteBuffer src) throws IOException {
+    int len = src.remaining();
+    int n = 0;
+    while (n < len) {
+      ByteBuffer window = getWindow(position + n, false);
+      if (window == null)
+        break;
+      int count = Math.min(len - n, window.remaining());
+      ByteBuffer chunk = src.duplicate();
+      chunk.limit(chunk.position() + count);
+      window.put(chunk);
+      src.position(chunk.position());
+      n += count;
+    }
+    return n;
+  }
+
+  /**
+   * Forces the windows that have been written to since the last call
+   * to be written to the storage device.
+   */
+  protected void force() {
+    MappedByteBuffer[] dirty;
+    synchronized (this) {
+      dirty = dirtyWindows.toArray(new MappedByteBuffer[dirtyWindows.size()]);
+      dirtyWindows.clear();
+    }
+    for (MappedByteBuffer window : dirty) {
+      window.force();
+    }
+  }
+
+  /**
+   * Returns a view of the window holding the byte at <code>position</code>,
+   * positioned at that byte. The view is private to the caller, so windows
+   * can be read and written by several threads at the same time.
+   *
+   * @param position the position in the file
+   * @param forRead false if the view will be written to
+   * @return a view of the window, or <code>null</code> if <code>position</code>
+   *         is beyond the end of the file
+   * @exception IOException if an I/O error occurs while mapping the file
+   */
+  private synchronized ByteBuffer getWindow(long position, boolean forRead)
+      throws IOException {
+    long index = position / Globals.MAPPED_WINDOW_SIZE;
+    long windowStart = index * Globals.MAPPED_WINDOW_SIZE;
+    int offset = (int) (position - windowStart);
+
+    MappedByteBuffer window = windows.get(index);
+    if (window == null || offset >= window.capacity()) {
+      long size = Math.min(channel.size() - windowStart, Globals.MAPPED_WINDOW_SIZE);
+      if (offset >= size)
+        return null;
+      if (window == null || size > window.capacity()) { // (re-)map the grown window
+        window = channel.map(mapMode, windowStart, size);
+        windows.put(index, window);
+      }
+    }
+    if (!forRead)
+      dirtyWindows.add(window);
+    ByteBuffer view = window.duplicate();
+    view.position(offset);
+    return view;
+  }
+}
@@ -0,0 +1,272 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches the committed content of an {@link XAFile} in memory.
+ * <p>
+ * The file is divided into pages of a fixed size. Pages are read from the
+ * file's channel the first time they are needed and are kept until the byte
+ * budget of the cache is exhausted, at which point the least recently used
+ * pages are evicted. When updates are committed to the file the pages holding
+ * them are patched, so the cache never serves stale data written through the
+ * same <code>XAFile</code>. Updates made to the file by other processes are
+ * not seen by the cache.
+ * <p>
+ * The number of page hits and misses are counted to help choosing the
+ * budget of the cache.
+ *
+ * @see XAFile#setPageCache(int, long)
+ */
+public class PageCache
+{
+  private FileChannel channel;
+  private int pageSize;
+  private long capacity;
+  private LinkedHashMap<Long, Page> pages;
+  private long modCount;
+  private long hits;
+  private long misses;
+
+  /**
+   * Constructor to create a <code>PageCache</code> reading pages from the
+   * given channel.
+   *
+   * @param channel the channel of the file to cache
+   * @param pageSize the size of each page in bytes
+   * @param capacity the maximum number of bytes kept in the cache
+   */
+  protected PageCache(FileChannel channel, int pageSize, long capacity) {
+    if (pageSize <= 0 || capacity < pageSize)
+      throw new IllegalArgumentException("pageSize=" + pageSize + ", capacity=" + capacity);
+    this.channel = channel;
+    this.pageSize = pageSize;
+    this.capacity = capacity;
+    final long maxPages = capacity / pageSize;
+    pages = new LinkedHashMap<Long, Page>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest) {
+        return size() > maxPages;
+      }
+    };
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes starting at <code>position</code>,
+   * loading the pages which are not cached from the file.
+   *
+   * @param position the position in the file of the first byte to read
+   * @param bytes the buffer into which the data is read
+   * @param off the start offset in <code>bytes</code>
+   * @param len the number of bytes to read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
+   * @exception IOException if an I/O error occurs
+   */
+  protected int read(long position, byte[] bytes, int off, int len) throws IOException {
+    return read(position, ByteBuffer.wrap(bytes, off, len));
+  }
+
+  /**
+   * Reads up to <code>dst.remaining()</code> bytes starting at
+   * <code>position</code> into the given buffer, loading the pages which
+   * are not cached from the file. The position of the buffer is advanced
+   * by the number of bytes read.
+   *
+   * @param position the position in the file of the first byte to read
+   * @param dst the buffer into which the data is read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
+   * @exception IOException if an I/O error occurs
+   */
+  protected int read(long position, ByteBuffer dst) throws IOException {
+    int len = dst.remaining();
+    int n = 0;
+    while (n < len) {
+      long pos = position + n;
+      long index = pos / pageSize;
+      int inPage = (int) (pos - index * pageSize);
+      int count = copyFromPage(index, inPage, dst);
+      if (count <= 0)
+        break;
+      n += count;
+      if (inPage + count < pageSize && n < len)
+        break; // the page is the last one of the file
+    }
+    return (n == 0 && len > 0) ? -1 : n;
+  }
+
+  /**
+   * Copies committed bytes into the cached pages they belong to. Pages
+   * which are not cached are left alone; a cached page is dropped if the
+   * bytes would leave a gap after its end.
+   *
+   * @param position the position in the file of the first committed byte
+   * @param data the committed bytes
+   * @param off the index in <code>data</code> of the first committed byte
+   * @param len the number of committed bytes
+   */
+  protected void update(long position, byte[] data, int off, int len) {
+    update(position, ByteBuffer.wrap(data, off, len));
+  }
+
+  /**
+   * Copies the remaining bytes of <code>data</code>, which have been
+   * committed at <code>position</code>, into the cached pages they belong to.
+   * The position of the buffer is advanced to its limit.
+   *
+   * @param position the position in the file of the first committed byte
+   * @param data the buffer holding the committed bytes
+   */
+  protected synchronized void update(long position, ByteBuffer data) {
+    modCount++;
+    int len = data.remaining();
+    int n = 0;
+    while (n < len) {
+      long pos = position + n;
+      long index = pos / pageSize;
+      int inPage = (int) (pos - index * pageSize);
+      int count = Math.min(len - n, pageSize - inPage);
+      Page page = pages.get(index);
+      if (page != null && inPage > page.length) {
+        pages.remove(index);
+        page = null;
+      }
+      if (page != null) {
+        data.get(page.data, inPage, count);
+        page.length = Math.max(page.length, inPage + count);
+      } else {
+        data.position(data.position() + count);
+      }
+      n += count;
+    }
+  }
+
+  /**
+   * Removes all the pages from the cache.
+   */
+  protected synchronized void clear() {
+    modCount++;
+    pages.clear();
+  }
+
+  /**
+   * Returns the size of the pages of this cache.
+   * @return the size of each page in bytes
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Returns the maximum number of bytes the cache may hold.
+   * @return the byte budget of this cache
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of page lookups served from the cache.
+   * @return the number of cache hits
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of page lookups which had to read the file.
+   * @return the number of cache misses
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Copies bytes of the page with the given <code>index</code>, loading
+   * the page first if it is not cached.
+   *
+   * @return the number of bytes copied; <code>0</code> if the page
+   *         holds no bytes at <code>inPage</code>
+   */
+  private int copyFromPage(long index, int inPage, ByteBuffer dst) throws IOException {
+    long expectedModCount;
+    synchronized (this) {
+      Page page = pages.get(index);
+      if (page != null) {
+        hits++;
+        return page.copy(inPage, dst);
+      }
+      misses++;
+      expectedModCount = modCount;
+    }
+
+    Page page = load(index);
+    synchronized (this) {
+      // a commit while the page was loaded may have made it stale
+      if (page.length > 0 && modCount == expectedModCount)
+        pages.put(index, page);
+      return page.copy(inPage, dst);
+    }
+  }
+
+  /**
+   * Reads the page with the given <code>index</code> from the file.
+   */
+  private Page load(long index) throws IOException {
+    Page page = new Page(pageSize);
+    ByteBuffer dst = ByteBuffer.wrap(page.data);
+    long position = index * pageSize;
+    while (dst.hasRemaining()) {
+      int count = channel.read(dst, position + dst.position());
+      if (count < 0)
+        break;
+    }
+    page.length = dst.position();
+    return page;
+  }
+
+  /**
+   * A page of the file; <code>length</code> is less than the size of
+   * the page only for the last page of the file.
+   */
+  private static class Page
+  {
+    private final byte[] data;
+    private int length;
+
+    private Page(int pageSize) {
+      data = new byte[pageSize];
+    }
+
+    private int copy(int inPage, ByteBuffer dst) {
+      int count = Math.min(dst.remaining(), length - inPage);
+      if (count <= 0)
+        return 0;
+      dst.put(data, inPage, count);
+      return count;
+    }
+  }
+}
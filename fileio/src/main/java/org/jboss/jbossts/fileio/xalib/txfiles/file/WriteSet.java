@@ -0,0 +1,323 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jboss.jbossts.fileio.xalib.Globals;
+
+/**
+ * This class keeps the bytes updated by a Transaction before they are
+ * committed to the source file.
+ * <p>
+ * The updates are kept as <em>extents</em>: contiguous ranges of bytes
+ * sorted by their position in the file. The file is divided into blocks of
+ * <code>Globals.WRITE_SET_EXTENT_SIZE</code> bytes and an extent never
+ * crosses the end of a block, so the array of an extent stays small however
+ * many bytes a Transaction writes. Within a block, a write that overlaps or
+ * touches existing extents is merged with them, so the set consists of the
+ * fewest possible disjoint ranges in each block. Reads are served by looking
+ * up the extents overlapping the requested range, and at commit time the
+ * extents are handed over as {@link DataRecord}s in ascending order, without
+ * any further processing.
+ *
+ * @see XAResourceManager
+ * @see DataRecord
+ */
+public class WriteSet
+{
+  private TreeMap<Long, Extent> extents;
+  private long size;
+
+  /**
+   * Constructor to create an empty <code>WriteSet</code>.
+   */
+  protected WriteSet() {
+    extents = new TreeMap<Long, Extent>();
+  }
+
+  /**
+   * Adds <code>len</code> bytes of the given array to this write set. The
+   * bytes are copied, so the caller may reuse the array afterwards. Bytes
+   * already held for the same positions are overwritten.
+   *
+   * @param position the position in the file of <code>bytes[off]</code>
+   * @param bytes the array holding the updated bytes
+   * @param off the index in <code>bytes</code> of the first updated byte
+   * @param len the number of updated bytes
+   */
+  protected void add(long position, byte[] bytes, int off, int len) {
+    add(position, ByteBuffer.wrap(bytes, off, len));
+  }
+
+  /**
+   * Adds the remaining bytes of the given buffer to this write set. The
+   * bytes are copied straight into the extents with bulk gets, so a direct
+   * buffer is not copied through a temporary array. The position of the
+   * buffer is advanced to its limit.
+   *
+   * @param position the position in the file of the byte at the position
+   *                 of <code>src</code>
+   * @param src the buffer holding the updated bytes
+   * @see #add(long, byte[], int, int)
+   */
+  protected void add(long position, ByteBuffer src) {
+    int limit = src.limit();
+    while (src.hasRemaining()) {
+      long blockStart = position - position % Globals.WRITE_SET_EXTENT_SIZE;
+      int n = (int) Math.min(src.remaining(), blockStart + Globals.WRITE_SET_EXTENT_SIZE - position);
+      src.limit(src.position() + n);
+      add(blockStart, position, src);
+      src.limit(limit);
+      position += n;
+    }
+  }
+
+  /**
+   * Adds the remaining bytes of <code>src</code>, which lie within the block
+   * starting at <code>blockStart</code>, merging them only with the extents
+   * of that block.
+   */
+  private void add(long blockStart, long position, ByteBuffer src) {
+    long end = position + src.remaining();
+    long blockEnd = blockStart + Globals.WRITE_SET_EXTENT_SIZE;
+
+    Map.Entry<Long, Extent> floor = extents.floorEntry(position);
+    Extent first = null;
+    if (floor != null && floor.getKey() >= blockStart &&
+        floor.getValue().getEndPosition() >= position)
+      first = floor.getValue(); // overlaps or touches the new bytes
+
+    // find the extents of the block the new bytes overlap or touch on their right
+    long newEnd = end;
+    List<Extent> absorbed = new ArrayList<Extent>();
+    for (Extent e : extents.subMap(position, true, end, end < blockEnd).values()) {
+      if (e != first) {
+        absorbed.add(e);
+        newEnd = Math.max(newEnd, e.getEndPosition());
+      }
+    }
+
+    if (first == null) {
+      first = new Extent(position, (int) (newEnd - position));
+      extents.put(position, first);
+    } else {
+      first.ensureCapacity((int) (Math.max(newEnd, first.getEndPosition()) - first.start));
+    }
+    size -= first.length;
+    for (Extent e : absorbed) {
+      extents.remove(e.start);
+      size -= e.length;
+      first.put(e.start, e.data, 0, e.length);
+    }
+    first.put(position, src);
+    size += first.length;
+  }
+
+  /**
+   * Copies the updated bytes that fall within <code>len</code> bytes starting
+   * at <code>position</code> into the given array, overwriting what has been
+   * read from the source file.
+   * <p>
+   * The source file provided only the first <code>available</code> bytes of
+   * the range; updates that continue directly after them (for example bytes
+   * appended beyond the end of the file) make more bytes available.
+   *
+   * @param position the position in the file of the first requested byte
+   * @param bytes the buffer which holds the bytes read from the file
+   * @param off the index in <code>bytes</code> of the first requested byte
+   * @param len the number of requested bytes
+   * @param available how many of the requested bytes the source file provided
+   * @return the number of contiguous bytes, starting at <code>position</code>,
+   *         now present in <code>bytes</code>
+   */
+  protected int read(long position, byte[] bytes, int off, int len, int available) {
+    return read(position, ByteBuffer.wrap(bytes, off, len), available);
+  }
+
+  /**
+   * Copies the updated bytes that fall within the range of <code>dst</code>,
+   * from its position up to its limit, into the buffer. The range starts at
+   * <code>position</code> in the file. The position of the buffer is not
+   * changed.
+   *
+   * @param position the position in the file of the first requested byte
+   * @param dst the buffer which holds the bytes read from the file
+   * @param available how many of the requested bytes the source file provided
+   * @return the number of contiguous bytes, starting at <code>position</code>,
+   *         now present in <code>dst</code>
+   * @see #read(long, byte[], int, int, int)
+   */
+  protected int read(long position, ByteBuffer dst, int available) {
+    long end = position + dst.remaining();
+    Long from = extents.floorKey(position);
+    if (from == null || extents.get(from).getEndPosition() <= position)
+      from = position;
+
+    ByteBuffer view = dst.duplicate();
+    for (Extent e : extents.subMap(from, true, end, false).values()) {
+      long s = Math.max(e.start, position);
+      long t = Math.min(e.getEndPosition(), end);
+      view.position(dst.position() + (int) (s - position));
+      view.put(e.data, (int) (s - e.start), (int) (t - s));
+      if (s <= position + available)
+        available = Math.max(available, (int) (t - position));
+    }
+    return available;
+  }
+
+  /**
+   * Returns true if any updated byte falls within <code>len</code> bytes
+   * starting at <code>position</code>.
+   *
+   * @param position the position in the file of the first byte of the range
+   * @param len the number of bytes in the range
+   * @return true if the range overlaps an updated byte; false otherwise
+   */
+  protected boolean overlaps(long position, long len) {
+    Map.Entry<Long, Extent> lower = extents.lowerEntry(position + len);
+    return lower != null && lower.getValue().getEndPosition() > position;
+  }
+
+  /**
+   * Returns the updated bytes as a list of disjoint records sorted by
+   * their position in the file. The records share the arrays held by
+   * this write set.
+   *
+   * @return the updated records in ascending position order
+   * @exception IOException if a record cannot be created
+   */
+  protected List<DataRecord> getRecords() throws IOException {
+    List<DataRecord> records = new ArrayList<DataRecord>(extents.size());
+    for (Extent e : extents.values()) {
+      records.add(new DataRecord(e.start, e.data, 0, e.length));
+    }
+    return records;
+  }
+
+  /**
+   * Returns the updated bytes that fall within <code>len</code> bytes
+   * starting at <code>position</code>, as a list of disjoint records sorted
+   * by their position in the file. The records share the arrays held by
+   * this write set.
+   *
+   * @param position the position in the file of the first byte of the range
+   * @param len the number of bytes in the range
+   * @return the updated records of the range in ascending position order
+   * @exception IOException if a record cannot be created
+   */
+  protected List<DataRecord> getRecords(long position, long len) throws IOException {
+    long end = position + len;
+    Long from = extents.floorKey(position);
+    if (from == null || extents.get(from).getEndPosition() <= position)
+      from = position;
+
+    List<DataRecord> records = new ArrayList<DataRecord>();
+    for (Extent e : extents.subMap(from, true, end, false).values()) {
+      long s = Math.max(e.start, position);
+      long t = Math.min(e.getEndPosition(), end);
+      records.add(new DataRecord(s, e.data, (int) (s - e.start), (int) (t - s)));
+    }
+    return records;
+  }
+
+  /**
+   * Returns the number of distinct updated bytes.
+   * @return the total length of the extents of this write set
+   */
+  protected long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns true if there are no updated bytes.
+   * @return true if this write set is empty; false otherwise
+   */
+  protected boolean isEmpty() {
+    return extents.isEmpty();
+  }
+
+  /**
+   * Removes all the updated bytes.
+   */
+  protected void clear() {
+    extents.clear();
+    size = 0;
+  }
+
+  /**
+   * A contiguous range of updated bytes. The array may be larger than
+   * the range so that consecutive writes can be appended cheaply.
+   */
+  private static class Extent
+  {
+    private final long start;
+    private byte[] data;
+    private int length;
+
+    private Extent(long start, int capacity) {
+      this.start = start;
+      this.data = new byte[capacity];
+    }
+
+    private long getEndPosition() {
+      return start + length;
+    }
+
+    /**
+     * Grows the array, doubling it up to the size of a block, so that it
+     * can hold <code>capacity</code> bytes.
+     */
+    private void ensureCapacity(int capacity) {
+      if (capacity > data.length) {
+        int newCapacity = Math.min(data.length * 2, Globals.WRITE_SET_EXTENT_SIZE);
+        byte[] newData = new byte[Math.max(newCapacity, capacity)];
+        System.arraycopy(data, 0, newData, 0, length);
+        data = newData;
+      }
+    }
+
+    /**
+     * Copies <code>len</code> bytes into this extent; the array must
+     * already be large enough.
+     */
+    private void put(long position, byte[] bytes, int off, int len) {
+      int index = (int) (position - start);
+      System.arraycopy(bytes, off, data, index, len);
+      length = Math.max(length, index + len);
+    }
+
+    /**
+     * Copies the remaining bytes of <code>src</code> into this extent with
+     * a bulk get; the array must already be large enough.
+     */
+    private void put(long position, ByteBuffer src) {
+      int index = (int) (position - start);
+      int len = src.remaining();
+      src.get(data, index, len);
+      length = Math.max(length, index + len);
+    }
+  }
+}
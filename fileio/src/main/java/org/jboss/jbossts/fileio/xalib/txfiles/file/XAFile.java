@@ -24,6 +24,8 @@ import com.arjuna.ats.txoj.LockResult;
 import javax.transaction.*;
 import javax.transaction.xa.Xid;
 import java.util.Hashtable;
+import java.util.List;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataInputStream;
@@ -37,10 +39,15 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import org.jboss.jbossts.fileio.DataOutputStream;
 import org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException;
 import org.jboss.jbossts.fileio.xalib.txfiles.exceptions.DuplicateTransactionsException;
 import org.jboss.jbossts.fileio.xalib.txfiles.logging.RecordsLogger;
+import org.jboss.jbossts.fileio.xalib.txfiles.logging.WriteAheadLog;
 import org.jboss.jbossts.fileio.xalib.txfiles.locking.XALockManager;
 import org.jboss.jbossts.fileio.xalib.txfiles.locking.XALock;
 import org.jboss.jbossts.fileio.xalib.Globals;
@@ -60,7 +67,14 @@ import org.jboss.jbossts.fileio.xalib.Globals;
  * <p>
  * Calling the <code>newTransaction</code> method twice from the same
  * thread will cause a <code>DuplicateTransactionsException</code> to
- * be thrown. As this XAFile class implements the <code>DataInput, DataOutput</code>
+ * be thrown. Each Transaction keeps its own file pointer, so <code>seek</code>
+ * and the read/write operations of one Transaction do not move the file
+ * pointer of another. Transactional reads and writes use positional I/O on
+ * the file's channel and are not serialised on the <code>XAFile</code>;
+ * concurrent Transactions are only restricted by the locks they hold. If
+ * Transactions are disabled the same holds in positional access mode (see
+ * <code>setPositionalAccess</code>), where each thread has its own file
+ * pointer. As this XAFile class implements the <code>DataInput, DataOutput</code>
  * interfaces all of their implemented read or write methods will throw an
  * <code>IOException</code> like specified in the above interfaces and
  * the read/write methods of the random access file used.
@@ -78,11 +92,24 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
   private String filename;
   private String mode;
   transient private RandomAccessFile raf;
+  transient private FileChannel channel;
   private Hashtable<Long, XAResourceManager> xares;
   transient private XALockManager xaLockManager;
   transient private File loggingFolder;
   transient private File locksFolder;
   transient private boolean transactionsEnabled;
+  // set by synchronized setters, read without a lock by each operation
+  transient private volatile MappedWindows mappedWindows;
+  transient private volatile PageCache pageCache;
+  transient private volatile GroupCommit groupCommit;
+  transient private volatile ThreadLocal<long[]> filePointers;
+  transient private WriteAheadLog writeAheadLog;
+  private long lockTimeout = Globals.THREAD_TIMEOUT;
+  private long transactionLockTimeout = Globals.LOCK_TRANSACTION_TIMEOUT;
+  private boolean interProcessLocking = Globals.LOCK_INTER_PROCESS;
+  private long logSegmentSize = Globals.LOG_SEGMENT_SIZE;
+  private long groupCommitWindow = Globals.GROUP_COMMIT_WINDOW;
+  private int groupCommitBatchSize = Globals.GROUP_COMMIT_BATCH_SIZE;
 
   /**
    * Constructor to create objects that represent a Transactional
@@ -107,12 +134,14 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
   public XAFile(String filename, String mode, boolean transactionsEnabled)
       throws IOException {
     raf = new RandomAccessFile(filename, mode);
+    channel = raf.getChannel();
     loggingFolder = new File(Globals.LOG_FOLDER_PATH);
     locksFolder = new File(Globals.LOCKS_FOLDER_PATH);
     this.filename = filename;
     this.mode = mode;
     this.transactionsEnabled = transactionsEnabled;
     xares = new Hashtable<Long, XAResourceManager>();
+    setGroupCommit(Globals.GROUP_COMMIT_WINDOW, Globals.GROUP_COMMIT_BATCH_SIZE);
     initLocksHeld();
 
     prepareFolders();
@@ -134,7 +163,9 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * Method to create a new Transaction and enlist XAResources.
    * <p>
    * The transaction is enlisted in a new {@link XAResourceManager}
-   * and appropriate log files are created each time the method is invoked.
+   * whose records are appended to the write-ahead log shared by the
+   * Transactions of the file; the log is opened the first time the method
+   * is invoked.
    * It is important that this method is called after the {@link javax.transaction.TransactionManager}
    * has began, in order to benefit from the Transactional effects.
    * <p>
@@ -170,11 +201,10 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
       {
         long th_id = Thread.currentThread().getId();
         if (!xares.containsKey(th_id)) {
-          String logName = loggingFolder.getPath() + '/' + th_id + '_' + System.nanoTime();
-
-          RecordsLogger log = new RecordsLogger(logName);
+          RecordsLogger log = new RecordsLogger(openWriteAheadLog());
 
           XAResourceManager xareMngr = new XAResourceManager(this, log, th_id);
+          xareMngr.setFilePointer(raf.getFilePointer());
           xares.put(th_id, xareMngr);
           Transaction txn = txnMngr.getTransaction();
           txn.enlistResource(xareMngr);
@@ -220,6 +250,12 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
     if (!xares.isEmpty())
         throw new IOException("Failed to close the file. There are incomplete Transactions."); //todo better rollback??
     raf.close();
+    synchronized (this) {
+      if (writeAheadLog != null) {
+        writeAheadLog.close();
+        writeAheadLog = null;
+      }
+    }
     if (xaLockManager.obtainHeldLocksWith(null).isEmpty()) // if the file is not  empty,
       xaLockManager.deleteFile();      // possibly another VM has written to it, so
   }                                    // do not delete it
@@ -234,22 +270,40 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception IOException if an I/O error occurs
    */
   protected void sync() throws IOException {
+    MappedWindows mw = mappedWindows;
+    if (mw != null)
+      mw.force();
     FileDescriptor fd = raf.getFD();
     fd.sync();
   }
 
   /**
-   * Forces data to be written to disk by instantly closing and re-opening
-   * the random access file. The file pointer returns to the correct
-   * position after re-opening the file.
+   * Forces the updates committed so far to the storage device, sharing
+   * the synchronization with the Transactions committing at the same time
+   * if group commit is set up.
+   * <p>
+   * This method is used at the <code>commit</code> phase of an
+   * <code>{@link XAResourceManager}</code>.
    *
    * @exception IOException if an I/O error occurs
+   * @see #setGroupCommit(long, int)
    */
-  public synchronized void flush() throws IOException {
-    long curPos = raf.getFilePointer();
-    raf.close();
-    raf = new RandomAccessFile(filename, mode);
-    raf.seek(curPos);
+  protected void syncCommitted() throws IOException {
+    GroupCommit gc = groupCommit;
+    if (gc != null)
+      gc.sync();
+    else
+      sync();
+  }
+
+  /**
+   * Forces data to be written to disk. The file is not re-opened, so
+   * Transactions reading or writing at the same time are not affected.
+   *
+   * @exception IOException if an I/O error occurs
+   */
+  public void flush() throws IOException {
+    channel.force(true);
   }
 
   /**
@@ -259,6 +313,9 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * of the file does not change the file length.  The file length will
    * change only by writing after the offset has been set beyond the end
    * of the file.
+   * <p>
+   * If the current thread is associated with a Transaction only the file
+   * pointer of that Transaction is set.
    *
    * @param      position   the offset position, measured in bytes from the
    *                        beginning of the file, at which to set the file
@@ -267,7 +324,21 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    *                          <code>0</code> or if an I/O error occurs.
    */
   public void seek(long position) throws IOException {
-    raf.seek(position);
+    XAResourceManager xare = getCurrentTransaction();
+    if (xare != null) {
+      if (position < 0)
+        throw new IOException("Negative seek offset");
+      xare.setFilePointer(position);
+    } else {
+      long[] fp = getThreadFilePointer();
+      if (fp == null) {
+        raf.seek(position);
+      } else {
+        if (position < 0)
+          throw new IOException("Negative seek offset");
+        fp[0] = position;
+      }
+    }
   }
 
   /**
@@ -285,6 +356,287 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
     this.transactionsEnabled = transactionsEnabled;
   }
 
+  /**
+   * Method to enable or disable the positional access mode of the file.
+   * <p>
+   * The mode only applies while Transactions are disabled. Each thread is
+   * given its own file pointer, starting at the file pointer of the file
+   * when the mode is enabled, and the read/write operations use positional
+   * I/O on the file's channel at that pointer instead of the shared random
+   * access file. The operations are not serialised on the
+   * <code>XAFile</code>, so threads reading and writing disjoint regions
+   * of the file, like bulk loaders, run in parallel. Threads writing to the
+   * same region are not isolated from each other. The mode is disabled by
+   * default.
+   *
+   * @param positionalAccess true to give each thread its own file pointer;
+   *                         false to share the file pointer of the file
+   * @exception IOException if an I/O error occurs
+   */
+  public synchronized void setPositionalAccess(boolean positionalAccess) throws IOException {
+    if (positionalAccess && filePointers == null) {
+      final long start = raf.getFilePointer();
+      filePointers = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+          return new long[] { start };
+        }
+      };
+    } else if (!positionalAccess) {
+      filePointers = null;
+    }
+  }
+
+  /**
+   * Returns true if each thread has its own file pointer while Transactions
+   * are disabled.
+   * @return true if the file is in positional access mode
+   * @see #setPositionalAccess(boolean)
+   */
+  public boolean isPositionalAccess() {
+    return filePointers != null;
+  }
+
+  /**
+   * Method to enable or disable the memory-mapped mode of the file.
+   * <p>
+   * In memory-mapped mode reads are served from <code>MappedByteBuffer</code>
+   * windows over the file instead of read system calls, which pays off when
+   * the same regions are read many times. Committed updates are applied to
+   * the mapping and forced to the storage device at commit time. Uncommitted
+   * updates of a Transaction are still read from its {@link WriteSet}.
+   * The mode is disabled by default.
+   *
+   * @param memoryMapped true to serve reads and commits through memory-mapped
+   *                     windows; false to use the file's channel
+   * @see MappedWindows
+   */
+  public synchronized void setMemoryMapped(boolean memoryMapped) {
+    if (memoryMapped && mappedWindows == null)
+      mappedWindows = new MappedWindows(channel, "r".equals(mode));
+    else if (!memoryMapped)
+      mappedWindows = null;
+  }
+
+  /**
+   * Method to set up a cache of the committed content of the file.
+   * <p>
+   * The cache keeps pages of <code>pageSize</code> bytes, up to
+   * <code>capacity</code> bytes in total, and evicts the least recently used
+   * pages when full. Reads which are not served by the {@link WriteSet} of a
+   * Transaction are served from the cache; committed updates are patched into
+   * the cached pages. The cache is not used in memory-mapped mode, as the
+   * mapping already serves reads from memory.
+   *
+   * @param pageSize the size of each page in bytes
+   * @param capacity the maximum number of bytes to cache; <code>0</code>
+   *                 removes the cache
+   * @exception IllegalArgumentException if <code>capacity</code> is positive but
+   *            less than <code>pageSize</code>, or <code>pageSize</code> is not positive
+   * @see PageCache
+   */
+  public synchronized void setPageCache(int pageSize, long capacity) {
+    if (capacity <= 0)
+      pageCache = null;
+    else
+      pageCache = new PageCache(channel, pageSize, capacity);
+  }
+
+  /**
+   * Method to set up group commit for the file.
+   * <p>
+   * Transactions which commit at the same time share a single
+   * synchronization of the file. The first Transaction of a batch waits up
+   * to <code>window</code> milliseconds, or until <code>batchSize</code>
+   * Transactions have committed, before forcing the file on behalf of all
+   * of them. Group commit is set up by default with a window of
+   * {@link Globals#GROUP_COMMIT_WINDOW} milliseconds, so only Transactions
+   * committing while the file is being forced are batched.
+   * <p>
+   * The same window and batch size apply to the write-ahead log, where the
+   * Transactions which prepare at the same time are batched; as the log is
+   * shared by the files of this process, they apply to all of them.
+   *
+   * @param window the maximum time in milliseconds a batch waits for more
+   *               Transactions
+   * @param batchSize the number of Transactions which forces a batch without
+   *                  waiting for the window to expire; <code>0</code> removes
+   *                  group commit so each Transaction forces the file itself
+   * @exception IllegalArgumentException if <code>window</code> or
+   *            <code>batchSize</code> is negative
+   * @see GroupCommit
+   */
+  public synchronized void setGroupCommit(long window, int batchSize) {
+    if (batchSize == 0) {
+      groupCommit = null;
+    } else {
+      groupCommit = new GroupCommit(window, batchSize) {
+        protected void force() throws IOException {
+          XAFile.this.sync();
+        }
+      };
+    }
+    if (writeAheadLog != null)
+      writeAheadLog.setGroupCommit(window, batchSize);
+    groupCommitWindow = window;
+    groupCommitBatchSize = batchSize;
+  }
+
+  /**
+   * Sets the maximum time, in milliseconds, a read or write operation waits
+   * for the locks of other Transactions to be released before a
+   * {@link org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException}
+   * is thrown. Waiting operations are granted their locks in the order they
+   * asked for them. The default is {@link Globals#THREAD_TIMEOUT}; 0 refuses
+   * a conflicting lock at once.
+   *
+   * @param lockTimeout the maximum waiting time of each operation
+   */
+  public void setLockTimeout(long lockTimeout) {
+    this.lockTimeout = lockTimeout;
+  }
+
+  /**
+   * Returns the maximum time, in milliseconds, an operation waits for a lock.
+   * @return the lock timeout of each operation
+   */
+  public long getLockTimeout() {
+    return lockTimeout;
+  }
+
+  /**
+   * Sets the maximum time, in milliseconds, a Transaction may spend waiting
+   * for locks over all its operations, after which any operation needing to
+   * wait is refused; 0 sets no limit other than the lock timeout of each
+   * operation.
+   *
+   * @param transactionLockTimeout the maximum waiting time of a Transaction
+   */
+  public void setTransactionLockTimeout(long transactionLockTimeout) {
+    this.transactionLockTimeout = transactionLockTimeout;
+    xaLockManager.setTransactionTimeout(transactionLockTimeout);
+  }
+
+  /**
+   * Returns the maximum time, in milliseconds, a Transaction may spend
+   * waiting for locks.
+   * @return the transaction lock timeout; 0 if there is no limit
+   */
+  public long getTransactionLockTimeout() {
+    return transactionLockTimeout;
+  }
+
+  /**
+   * Switches inter-process locking on or off. With inter-process locking
+   * the processes working on the file exclude each other through operating
+   * system locks on a sidecar lock file, taken once the lock has been granted
+   * among the Transactions of this process, instead of through the
+   * <em>locks file</em>. The default is {@link Globals#LOCK_INTER_PROCESS}.
+   * It can only be switched while no Transaction holds a lock.
+   *
+   * @param interProcessLocking true to lock the sidecar lock file
+   * @exception IOException if the lock file cannot be opened
+   * @exception IllegalStateException if locks are held
+   */
+  public void setInterProcessLocking(boolean interProcessLocking) throws IOException {
+    xaLockManager.setInterProcess(interProcessLocking);
+    this.interProcessLocking = interProcessLocking;
+  }
+
+  /**
+   * Returns true if inter-process locking is on.
+   * @return true if the sidecar lock file is locked
+   */
+  public boolean isInterProcessLocking() {
+    return interProcessLocking;
+  }
+
+  /**
+   * Returns the lock manager of the file, which also keeps the deadlock
+   * counter and the policy choosing the victims of deadlocks.
+   * @return the lock manager
+   */
+  public XALockManager getLockManager() {
+    return xaLockManager;
+  }
+
+  /**
+   * Returns the group commit coordinator of the file, which also keeps
+   * the batch counters.
+   * @return the group commit coordinator, or <code>null</code> if group
+   *         commit has been removed
+   */
+  public GroupCommit getGroupCommit() {
+    return groupCommit;
+  }
+
+  /**
+   * Returns the cache of the committed content of the file, which also
+   * keeps the hit and miss counters.
+   * @return the page cache, or <code>null</code> if no cache has been set up
+   */
+  public PageCache getPageCache() {
+    return pageCache;
+  }
+
+  /**
+   * Returns the write-ahead log shared by the Transactions of the file,
+   * which also keeps the group commit counters of the log.
+   * @return the write-ahead log, or <code>null</code> if no Transaction
+   *         has been created since the file was opened
+   */
+  public synchronized WriteAheadLog getWriteAheadLog() {
+    return writeAheadLog;
+  }
+
+  /**
+   * Sets the size to which the segments of the write-ahead log are
+   * preallocated. Larger segments are rolled, and so preallocated, less
+   * often. The default is {@link Globals#LOG_SEGMENT_SIZE}; a log already
+   * open gets the size from its next segment on, and the size applies to
+   * all the files of this process which share the log.
+   *
+   * @param logSegmentSize the size of a segment in bytes
+   */
+  public synchronized void setLogSegmentSize(long logSegmentSize) {
+    if (writeAheadLog != null)
+      writeAheadLog.setSegmentSize(logSegmentSize);
+    this.logSegmentSize = logSegmentSize;
+  }
+
+  /**
+   * Returns the size to which the segments of the write-ahead log are
+   * preallocated.
+   * @return the size of a segment in bytes
+   */
+  public synchronized long getLogSegmentSize() {
+    return logSegmentSize;
+  }
+
+  /**
+   * Returns the write-ahead log of the file, opening it the first time
+   * a Transaction is created.
+   */
+  private synchronized WriteAheadLog openWriteAheadLog() throws IOException {
+    if (writeAheadLog == null) {
+      writeAheadLog = WriteAheadLog.open(loggingFolder, filename);
+      if (logSegmentSize != Globals.LOG_SEGMENT_SIZE)
+        writeAheadLog.setSegmentSize(logSegmentSize);
+      if (groupCommitWindow != Globals.GROUP_COMMIT_WINDOW ||
+          groupCommitBatchSize != Globals.GROUP_COMMIT_BATCH_SIZE)
+        writeAheadLog.setGroupCommit(groupCommitWindow, groupCommitBatchSize);
+    }
+    return writeAheadLog;
+  }
+
+  /**
+   * Returns true if the file is in memory-mapped mode.
+   * @return true if reads and commits are served through memory-mapped
+   *         windows; false otherwise
+   */
+  public boolean isMemoryMapped() {
+    return mappedWindows != null;
+  }
+
   /**
    * Returns a standard error message based on the given <code>th_id</code>
    * @param th_id the thread id participating in the generated message
@@ -297,29 +649,28 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
   }
 
   /**
-   * Method to update a series of bytes in the file starting from a
-   * given <code>position</code>.
+   * Method to apply the records of a Transaction to the file.
    * <p>
    * The method is called after an {@link XAResourceManager} is
-   * ready to commit. It copies <code>data</code> of exact <code>recordLength</code>
-   * and starting from position <code>position</code> in the source file.
+   * ready to commit. The <code>records</code> must be disjoint and sorted
+   * by their position in the file, as returned by a {@link WriteSet}, so
+   * they are written in a single pass of ascending positional writes, one
+   * per contiguous range of updated bytes.
    *
-   * @param position the position in the file to start copying <code>data</code>
-   * @param recordLength the length of bytes to be copied
-   * @param data the actual data/updates
+   * @param records the disjoint records to write, in ascending position order
    * @param th_id the thread associated with the Transaction trying to commit
    * @exception IOException if an I/O error occurs
    * @exception IllegalStateException
    *            if the given <code>th_id</code> is not associated with a
    *            Transaction
    */  
-  protected synchronized void commitUpdates(long position, int recordLength, byte[] data,
-                                            long th_id) throws IOException {
+  protected void commitUpdates(List<DataRecord> records, long th_id) throws IOException {
     if (th_id != Globals.RECOVERY_ID && th_id != getCurrentThreadId())
       throw new IllegalStateException(getErrMsg(th_id));
-    long curPos = raf.getFilePointer();
-    commitUpdates(position, recordLength, data);
-    raf.seek(curPos);
+    for (DataRecord dr : records) {
+      writeToFile(dr.getStartPosition(), dr.getRecordBytes(),
+          dr.getRecordOffset(), dr.getRecordLength());
+    }
   }
 
   /**
@@ -331,14 +682,109 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * and starting from position <code>position</code> in the source file.
    *
    * @param position the position in the file to start copying <code>data</code>
-   * @param recordLength the length of bytes to be copied
    * @param data the actual data/updates
+   * @param off the index in <code>data</code> of the first byte to copy
+   * @param recordLength the length of bytes to be copied
    * @exception IOException if an I/O error occurs
    */
-  private void commitUpdates(long position, int recordLength, byte[] data) throws IOException
+  private void commitUpdates(long position, byte[] data, int off, int recordLength)
+      throws IOException
   {
     raf.seek(position);
-    raf.write(data, 0, recordLength);
+    raf.write(data, off, recordLength);
+    PageCache pc = pageCache;
+    if (pc != null)
+      pc.update(position, data, off, recordLength);
+  }
+
+  /**
+   * Writes <code>len</code> bytes to the file at the given <code>position</code>
+   * using the file's channel. Neither the file pointer nor any other
+   * Transaction is affected, so different regions of the file can be
+   * written concurrently. In memory-mapped mode the bytes are written to
+   * the mapping, apart from the ones which extend the file.
+   *
+   * @param position the position in the file to write the first byte
+   * @param data the bytes to write
+   * @param off the index in <code>data</code> of the first byte to write
+   * @param len the number of bytes to write
+   * @exception IOException if an I/O error occurs
+   */
+  private void writeToFile(long position, byte[] data, int off, int len) throws IOException {
+    writeToFile(position, ByteBuffer.wrap(data, off, len));
+  }
+
+  /**
+   * Writes the remaining bytes of <code>src</code> to the file at the given
+   * <code>position</code>, like {@link #writeToFile(long, byte[], int, int)}.
+   * The position of the buffer is advanced to its limit. Direct buffers are
+   * handed to the file's channel without being copied.
+   *
+   * @param position the position in the file to write the first byte
+   * @param src the buffer holding the bytes to write
+   * @exception IOException if an I/O error occurs
+   */
+  private void writeToFile(long position, ByteBuffer src) throws IOException {
+    PageCache pc = pageCache;
+    ByteBuffer written = (pc != null) ? src.duplicate() : null;
+    MappedWindows mw = mappedWindows;
+    long pos = position;
+    if (mw != null)
+      pos += mw.write(position, src);
+    while (src.hasRemaining()) {
+      pos += channel.write(src, pos);
+    }
+    if (pc != null)
+      pc.update(position, written);
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes from the file at the given
+   * <code>position</code> using the file's channel, the mapped windows
+   * in memory-mapped mode or the page cache, if there is one, without
+   * moving any file pointer.
+   *
+   * @param position the position in the file of the first byte to read
+   * @param bytes the buffer into which the data is read
+   * @param off the start offset in <code>bytes</code>
+   * @param len the number of bytes to read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
+   * @exception IOException if an I/O error occurs
+   */
+  private int readFromFile(long position, byte[] bytes, int off, int len) throws IOException {
+    return readFromFile(position, ByteBuffer.wrap(bytes, off, len));
+  }
+
+  /**
+   * Reads up to <code>dst.remaining()</code> bytes from the file at the
+   * given <code>position</code> into the buffer, like
+   * {@link #readFromFile(long, byte[], int, int)}. The position of the buffer
+   * is advanced by the number of bytes read. Direct buffers are filled by
+   * the file's channel without an intermediate copy.
+   *
+   * @param position the position in the file of the first byte to read
+   * @param dst the buffer into which the data is read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
+   * @exception IOException if an I/O error occurs
+   */
+  private int readFromFile(long position, ByteBuffer dst) throws IOException {
+    MappedWindows mw = mappedWindows;
+    if (mw != null)
+      return mw.read(position, dst);
+    PageCache pc = pageCache;
+    if (pc != null)
+      return pc.read(position, dst);
+    int len = dst.remaining();
+    int n = 0;
+    while (n < len) {
+      int count = channel.read(dst, position + n);
+      if (count < 0)
+        break;
+      n += count;
+    }
+    return (n == 0 && len > 0) ? -1 : n;
   }
 
   /**
@@ -372,16 +818,24 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception IOException if an I/O error occurs
    */
   protected void initLocksHeld() throws IOException {
-    xaLockManager = new XALockManager(filename);
+    xaLockManager = new XALockManager(filename, interProcessLocking);
+    xaLockManager.setTransactionTimeout(transactionLockTimeout);
   }
 
   /**
    * Internal method to ask from {@link org.jboss.jbossts.fileio.xalib.txfiles.locking.XALockManager} to apply
-   * a read/write lock on a given <code>DataRecord</code>.
+   * a read/write lock on a given range of bytes.
    * <p>
    * The method is invoked by read/write operations within the
    * XAFile to lock on a specific range of bytes in the file.
-   * @param dr the record to lock on, either in read or write mode
+   * The lock is acquired before the bytes are read or written, so the
+   * range is protected for the whole duration of the operation. If another
+   * Transaction holds a conflicting lock, the method waits for it to be
+   * released up to the lock timeout of the file, unless waiting would
+   * deadlock and the Transaction is chosen as the victim.
+   *
+   * @param position the position in the file of the first byte to lock
+   * @param length the number of bytes to lock, either in read or write mode
    * @param xid the {@link javax.transaction.xa.Xid} of the current
    *        {@link XAResourceManager}
    * @param mode read/write modes as specified in the
@@ -390,23 +844,22 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    *         whether the lock can be <em>GRANTED or REFUSED</em>
    * @exception IOException if an I/O error occurs
    * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if lock cannot be <em>GRANTED</em>
+   * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.DeadlockException if the Transaction is
+   *            the victim of a deadlock
    */
-  private int acquireLockOn(DataRecord dr, Xid xid, int mode) throws IOException {
-    XALock xaLock = new XALock(xid, mode, dr.getStartPosition(), dr.getRecordLength());
-    int res = xaLockManager.tryLock(xaLock);//LockManager.waitTotalTimeout);
+  private int acquireLockOn(long position, int length, Xid xid, int mode) throws IOException {
+    XALock xaLock = new XALock(xid, mode, position, length);
+    int res = xaLockManager.lock(xaLock, lockTimeout);
 
     if (res == LockResult.REFUSED) {
-      String msg = "REFUSED:WRITE_LOCK on byte(s): " + dr.getRecordStr();
+      String range = "[" + position + ", " + (position + length) + ")";
+      String msg = "REFUSED:WRITE_LOCK on byte(s): " + range;
       if (mode == LockMode.READ) {
-        msg = "REFUSED:READ_LOCK on byte(s): " + dr.getRecordStr();
+        msg = "REFUSED:READ_LOCK on byte(s): " + range;
       }
+      if (lockTimeout > 0)
+        msg += " (lock timeout " + lockTimeout + "ms)";
       throw new LockRefusedException(msg);
-    } else if (res == LockResult.GRANTED) {
-      String msg = "GRANTED:WRITE_LOCK on byte(s): " + dr.getRecordStr();
-      if (mode == LockMode.READ) {
-        msg = "GRANTED:READ_LOCK on byte(s): " + dr.getRecordStr();
-      }
-//      System.out.println(msg);
     }
     return res;
   }
@@ -432,62 +885,125 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
   /**
    * Internal method used by read operations in this <code>XAFile</code>.
    * If the class is used in the Transactional mode (Transactions are enabled)
-   * the method tries to read bytes from memory. If that fails it means no
+   * the method tries to read bytes from memory (the {@link WriteSet} of the
+   * Transaction). If that fails it means no
    * previous write operations applied on the same range of bytes so the
    * method will try to read and return the bytes as read directly from the
    * source file. If Transactions are disabled the method does not make any
    * attempts to find if there are any modified bytes by previous write
    * operations and so it reads directly from the file.
    * <p>
-   * The method starts reading bytes at the current file pointer. If data
-   * are retrieved from the memory instead of the actual file, the file
-   * pointer progresses by <code>len</code> steps, if successful.
-   * @param len the length of data to read
-   * @return the bytes read into an array of Integers
+   * The method starts reading bytes at the current file pointer and copies
+   * them straight into <code>bytes</code>; the file is read in one go and
+   * only the bytes found in memory are patched afterwards. The file pointer
+   * progresses by the number of bytes read. In Transactional mode the
+   * file pointer of the current Transaction is used and the file is read
+   * with positional I/O, so the method does not block other Transactions.
+   * @param bytes the buffer into which the data is read
+   * @param off the start offset in <code>bytes</code>
+   * @param len the maximum number of bytes to read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
    * @exception IOException          if an I/O error occurs 
    * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if a lock cannot be <code>GRANTED</code>
    */
-  private synchronized int[] readRecord(int len) throws IOException {
+  private int readRecord(byte[] bytes, int off, int len) throws IOException {
     if (transactionsEnabled) {
       long curThread = getCurrentThreadId();
       XAResourceManager xare = xares.get(curThread);
 
-      Hashtable<Long, Integer> updatedBytes = xare.getUpdatedBytes();
-      int[] upds = new int[len];
-      long startPos = raf.getFilePointer();
-      int i;
-      for (i=0;i<len;i++) {
-//        if (startPos >= raf.length())
-//          return null;
-        if (updatedBytes.containsKey(startPos)) {
-          upds[i] = updatedBytes.get(startPos++);
-          raf.seek(raf.getFilePointer()+1);
-        } else {
-          upds[i] = raf.read();
-        }
-      }
-      DataRecord dr = new DataRecord(raf.getFilePointer()-len, len, upds);
-      acquireLockOn(dr, xare.getXid(), LockMode.READ);
-      return upds;
+      long startPos = xare.getFilePointer();
+      int i = readRecord(xare, startPos, ByteBuffer.wrap(bytes, off, len));
+      if (i > 0)
+        xare.setFilePointer(startPos + i);
+      return i;
+    }
+    long[] fp = getThreadFilePointer();
+    if (fp != null) {
+      int i = readFromFile(fp[0], bytes, off, len);
+      if (i > 0)
+        fp[0] += i;
+      return i;
+    }
+    synchronized (this) {
+      return readDirectlyFromFile(bytes, off, len);
     }
-    return readDirectlyFromFile(len);
   }
 
   /**
-   * Method to read exactly <code>len</code> bytes
-   * directly from the file and starting at the current file
-   * pointer.
+   * Reads up to <code>dst.remaining()</code> bytes at the given
+   * <code>position</code> on behalf of a Transaction. A lock in
+   * <code>READ</code> mode is acquired on the range, the bytes are read from
+   * the file and the bytes found in the {@link WriteSet} of the Transaction
+   * are patched over them. The position of the buffer is advanced by the
+   * number of bytes read; the file pointer is not changed.
    *
+   * @param xare the resource manager of the Transaction
+   * @param position the position in the file of the first byte to read
+   * @param dst the buffer into which the data is read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
+   * @exception IOException if an I/O error occurs
+   * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if a lock cannot be <code>GRANTED</code>
+   */
+  private int readRecord(XAResourceManager xare, long position, ByteBuffer dst)
+      throws IOException {
+    int len = dst.remaining();
+    acquireLockOn(position, len, xare.getXid(), LockMode.READ);
+    int start = dst.position();
+    int fromFile = Math.max(readFromFile(position, dst), 0);
+    dst.position(start);
+    int i = xare.getWriteSet().read(position, dst, fromFile);
+    dst.position(start + i);
+    return (i == 0 && len > 0) ? -1 : i;
+  }
+
+  /**
+   * Internal method used by the read operations that need exactly
+   * <code>len</code> bytes, like <code>readInt</code> or <code>readLong</code>.
+   *
+   * @param len the number of bytes to read
+   * @return a new array holding the <code>len</code> bytes read
+   * @exception EOFException if the file reaches the end before reading
+   *                         <code>len</code> bytes
+   * @exception IOException if an I/O error occurs
+   */
+  private byte[] readRecord(int len) throws IOException {
+    byte[] bytes = new byte[len];
+    if (readRecord(bytes, 0, len) < len)
+      throw new EOFException();
+    return bytes;
+  }
+
+  /**
+   * Method to read up to <code>len</code> bytes directly from the file
+   * and starting at the current file pointer. The method reads repeatedly
+   * until either <code>len</code> bytes are read or the end of the file
+   * is reached.
+   *
+   * @param bytes the buffer into which the data is read
+   * @param off the start offset in <code>bytes</code>
    * @param len the length of bytes to read from the file
-   * @return the bytes read into an Integer array
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
    * @exception IOException if an I/O error occurs
    */
-  public int[] readDirectlyFromFile(int len) throws IOException {
-    int[] buffer = new int[len];
-    for (int b=0; b<len; b++) {
-      buffer[b] = raf.read();
+  public int readDirectlyFromFile(byte[] bytes, int off, int len) throws IOException {
+    if (mappedWindows != null || pageCache != null) {
+      long pos = raf.getFilePointer();
+      int count = readFromFile(pos, bytes, off, len);
+      if (count > 0)
+        raf.seek(pos + count);
+      return count;
     }
-    return buffer;
+    int n = 0;
+    while (n < len) {
+      int count = raf.read(bytes, off + n, len - n);
+      if (count < 0)
+        break;
+      n += count;
+    }
+    return (n == 0 && len > 0) ? -1 : n;
   }
 
   /**
@@ -503,11 +1019,7 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException   if an I/O error occurs.
    */  
   public boolean readBoolean() throws IOException {
-    int ch = readByte();
-    if (ch < 0) {
-      throw new EOFException();
-    }
-    return (ch != 0);
+    return readRecord(1)[0] != 0;
   }
 
   /**
@@ -555,14 +1067,8 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException   if an I/O error occurs.
    */
   public int readUnsignedShort() throws IOException {
-    int[] ints = readRecord(Short.SIZE/Byte.SIZE);
-
-    int ch1 = ints[0];
-    int ch2 = ints[1];
-    if ((ch1 | ch2) < 0)
-      throw new EOFException();
-
-    return (ch1 << 8) + (ch2);
+    byte[] bs = readRecord(Short.SIZE/Byte.SIZE);
+    return ((bs[0] & 0xFF) << 8) + (bs[1] & 0xFF);
   }
 
   /**
@@ -605,11 +1111,8 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
       throw new IndexOutOfBoundsException("bytes.length=" + bytes.length +
           ", off=" + off + ", len=" + len);
 
-    byte[] bs = getBytesFromInts(readRecord(len));
-    System.arraycopy(bs, 0, bytes, off, len);
-//    for (int b = off; b < off + len; b++) {
-//      bytes[b] = readByte();
-//    }
+    if (readRecord(bytes, off, len) < len)
+      throw new EOFException();
   }
 
   /**
@@ -633,14 +1136,8 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException   if an I/O error occurs.
    */
   public short readShort() throws IOException {
-    int[] ints = readRecord(Short.SIZE/Byte.SIZE);
-
-    int ch1 = ints[0];
-    int ch2 = ints[1];
-    if ((ch1 | ch2) < 0) {
-      throw new EOFException();
-    }
-    return (short) ((ch1 << 8) + (ch2));
+    byte[] bs = readRecord(Short.SIZE/Byte.SIZE);
+    return (short) (((bs[0] & 0xFF) << 8) + (bs[1] & 0xFF));
   }
 
   /**
@@ -657,6 +1154,9 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * interpreted as bytes encoding characters in the modified UTF-8 format
    * and are converted into characters.
    * <p>
+   * In Transactional mode a single lock in <code>READ</code> mode is
+   * acquired on the length and the bytes of the string.
+   * <p>
    * This method blocks until all the bytes are read, the end of the
    * stream is detected, or an exception is thrown.
    *
@@ -670,7 +1170,24 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @see        java.io.RandomAccessFile#readUnsignedShort()
    */
   public String readUTF() throws IOException {
-    return DataInputStream.readUTF(this);
+    if (!transactionsEnabled)
+      return DataInputStream.readUTF(this);
+
+    XAResourceManager xare = xares.get(getCurrentThreadId());
+    long position = xare.getFilePointer();
+    byte[] bytes;
+    do {
+      byte[] head = new byte[2];
+      if (peekRecord(xare, position, head, 0, 2) < 2)
+        throw new EOFException();
+      int utflen = ((head[0] & 0xFF) << 8) + (head[1] & 0xFF);
+      bytes = new byte[2 + utflen];
+      int n = peekRecord(xare, position, bytes, 0, bytes.length);
+      if (n < bytes.length)
+        throw new EOFException();
+    } while (!confirmRecord(xare, position, bytes, bytes.length));
+    xare.setFilePointer(position + bytes.length);
+    return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(bytes)));
   }
 
   /**
@@ -719,16 +1236,8 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException   if an I/O error occurs.
    */
   public int readInt() throws IOException {
-    int[] ints = readRecord(Integer.SIZE/Byte.SIZE);
-
-    int ch1 = ints[0];
-    int ch2 = ints[1];
-    int ch3 = ints[2];
-    int ch4 = ints[3];
-    if ((ch1 | ch2 | ch3 | ch4) < 0) {
-      throw new EOFException();
-    }
-    return ((ch1 << 24) + (ch2 << 16) + (ch3 << 8) + (ch4));
+    byte[] bs = readRecord(Integer.SIZE/Byte.SIZE);
+    return getInt(bs, 0);
   }
 
   /**
@@ -745,11 +1254,7 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException   if an I/O error occurs.
    */
   public int readUnsignedByte() throws IOException {
-    int ch = readByte();
-    if (ch < 0) {
-      throw new EOFException();
-    }
-    return ch;
+    return readRecord(1)[0] & 0xFF;
   }
 
   /**
@@ -771,8 +1276,55 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException   if an I/O error occurs.
    */
   public byte readByte() throws IOException {
-    int[] ints = readRecord(Byte.SIZE/Byte.SIZE);
-    return (ints != null) ? (byte) ints[0] : -1;
+    return readRecord(Byte.SIZE/Byte.SIZE)[0];
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes at the given <code>position</code>
+   * the same way as the read operations do, but without acquiring a lock
+   * and without moving any file pointer. It is used to scan ahead for the
+   * extent of a line or a string, which is then read again under a single
+   * lock.
+   *
+   * @param xare the resource manager of the current Transaction, or
+   *             <code>null</code> if Transactions are disabled
+   * @param position the position in the file of the first byte to read
+   * @param bytes the buffer into which the data is read
+   * @param off the start offset in <code>bytes</code>
+   * @param len the maximum number of bytes to read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
+   * @exception IOException if an I/O error occurs
+   */
+  private int peekRecord(XAResourceManager xare, long position, byte[] bytes, int off, int len)
+      throws IOException {
+    int fromFile = readFromFile(position, bytes, off, len);
+    if (xare == null)
+      return fromFile;
+    int i = xare.getWriteSet().read(position, bytes, off, len, Math.max(fromFile, 0));
+    return (i == 0 && len > 0) ? -1 : i;
+  }
+
+  /**
+   * Reads <code>len</code> bytes at the given <code>position</code> on behalf
+   * of a Transaction under a single lock and checks they are the bytes found
+   * by {@link #peekRecord} without a lock. They differ only if another
+   * Transaction committed to the range in the meantime, in which case the
+   * caller scans the range again.
+   *
+   * @return true if the bytes read under the lock are the expected ones
+   */
+  private boolean confirmRecord(XAResourceManager xare, long position, byte[] expected, int len)
+      throws IOException {
+    byte[] locked = new byte[len];
+    int n = readRecord(xare, position, ByteBuffer.wrap(locked));
+    if (n < len)
+      return false;
+    for (int i = 0; i < len; i++) {
+      if (locked[i] != expected[i])
+        return false;
+    }
+    return true;
   }
 
   /**
@@ -790,6 +1342,10 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * or the end of the file.  Line-terminating characters are discarded and
    * are not included as part of the string returned.
    *
+   * <p> The file is scanned in chunks for the end of the line; in
+   * Transactional mode a single lock in <code>READ</code> mode is then
+   * acquired on the bytes of the line, including its terminator.
+   *
    * <p> This method blocks until a newline character is read, a carriage
    * return and the byte following it are read (to see if it is a newline),
    * the end of the file is reached, or an exception is thrown.
@@ -799,32 +1355,100 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException  if an I/O error occurs.
    */
   public String readLine() throws IOException {
-    StringBuffer input = new StringBuffer();
-    int c = -1;
-    boolean eol = false;
-
-    while (!eol) {
-      switch (c = readByte()) {
-        case -1:
-        case '\n':
-          eol = true;
-          break;
-        case '\r':
-          eol = true;
-          long cur = raf.getFilePointer();
-          if ((readByte()) != '\n') {
-            raf.seek(cur);
-          }
-          break;
-        default:
-          input.append((char) c);
-          break;
+    if (!transactionsEnabled) {
+      long[] fp = getThreadFilePointer();
+      if (fp != null) {
+        byte[] line = scanLine(null, fp[0]);
+        if (line == null)
+          return null;
+        fp[0] += line.length;
+        return toLine(line);
+      }
+      synchronized (this) {
+        long position = raf.getFilePointer();
+        byte[] line = scanLine(null, position);
+        if (line == null)
+          return null;
+        raf.seek(position + line.length);
+        return toLine(line);
+      }
+    }
+
+    XAResourceManager xare = xares.get(getCurrentThreadId());
+    long position = xare.getFilePointer();
+    byte[] line;
+    do {
+      line = scanLine(xare, position);
+      if (line == null)
+        return null;
+    } while (!confirmRecord(xare, position, line, line.length));
+    xare.setFilePointer(position + line.length);
+    return toLine(line);
+  }
+
+  /**
+   * Scans the file (or memory if there are uncommitted byte updates) in
+   * chunks of <code>Globals.SCAN_CHUNK_SIZE</code> bytes, starting at the
+   * given <code>position</code>, until a line terminator or the end of the
+   * file is found. No lock is acquired and no file pointer is moved.
+   *
+   * @param xare the resource manager of the current Transaction, or
+   *             <code>null</code> if Transactions are disabled
+   * @param position the position in the file where the line starts
+   * @return the bytes of the line including its terminator, or
+   *         <code>null</code> if the end of the file is at <code>position</code>
+   * @exception IOException if an I/O error occurs
+   */
+  private byte[] scanLine(XAResourceManager xare, long position) throws IOException {
+    byte[] buf = new byte[Globals.SCAN_CHUNK_SIZE];
+    int filled = 0;
+    int i = 0;
+    boolean eof = false;
+    while (true) {
+      if (i + 1 >= filled && !eof) { // keep a byte of look-ahead for "\r\n"
+        if (filled == buf.length) {
+          byte[] grown = new byte[buf.length * 2];
+          System.arraycopy(buf, 0, grown, 0, filled);
+          buf = grown;
+        }
+        int n = peekRecord(xare, position + filled, buf, filled, buf.length - filled);
+        if (n <= 0)
+          eof = true;
+        else
+          filled += n;
+        continue;
       }
+      if (i == filled || buf[i] == '\n' || buf[i] == '\r')
+        break;
+      i++;
     }
-    if ((c == -1) && (input.length() == 0)) {
+
+    if (filled == 0)
       return null;
+    int consumed = i;
+    if (i < filled) {
+      consumed++;
+      if (buf[i] == '\r' && i + 1 < filled && buf[i + 1] == '\n')
+        consumed++;
     }
-    return input.toString();
+    byte[] line = new byte[consumed];
+    System.arraycopy(buf, 0, line, 0, consumed);
+    return line;
+  }
+
+  /**
+   * Converts the bytes of a line to characters, dropping its terminator.
+   * Each byte is taken for the lower eight bits of a character.
+   */
+  private static String toLine(byte[] line) {
+    int len = line.length;
+    while (len > 0 && (line[len - 1] == '\n' || line[len - 1] == '\r'))
+      len--;
+    char[] chars = new char[len];
+    for (int i = 0; i < len; i++) {
+      chars[i] = (char) (line[i] & 0xFF);
+    }
+    return new String(chars);
   }
 
   /**
@@ -881,17 +1505,39 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
     if (off < 0 || len < 0 || off + len > bytes.length)
       throw new IndexOutOfBoundsException("bytes.length=" + bytes.length +
           ", off=" + off + ", len=" + len);
-    if (bytes.length == 0)
+    if (len == 0)
       return 0;
-    byte[] bs = getBytesFromInts(readRecord(len)); //todo readRecord may return null
-    System.arraycopy(bs, 0, bytes, off, len);
-//    int b;
-//    for (b = off; b < off + len; b++) {
-//      if (b >= raf.length())
-//        return -1;
-//      bytes[b] = readByte();
-//    }
-    return bs.length;
+    return readRecord(bytes, off, len);
+  }
+
+  /**
+   * Reads up to <code>dst.remaining()</code> bytes from this file (or memory
+   * if there are uncommitted byte updates), starting at the given
+   * <code>position</code>, into the buffer. The file pointer is not changed
+   * and the position of the buffer is advanced by the number of bytes read.
+   * <p>
+   * In Transactional mode the bytes are locked in <code>READ</code> mode and
+   * the updates of the current Transaction are patched over the bytes read
+   * from the file, like the other read operations. The file is read with
+   * positional I/O, which fills direct buffers without an intermediate copy.
+   *
+   * @param dst the buffer into which the data is read
+   * @param position the position in the file of the first byte to read
+   * @return the number of bytes read, or <code>-1</code> if the end of the
+   *         file has been reached before any byte could be read
+   * @exception IOException if an I/O error occurs
+   * @exception IllegalArgumentException if <code>position</code> is negative
+   * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if a lock cannot be <code>GRANTED</code>
+   * @see XAFile#write(ByteBuffer, long)
+   */
+  public int read(ByteBuffer dst, long position) throws IOException {
+    if (position < 0)
+      throw new IllegalArgumentException("Negative position");
+    if (!dst.hasRemaining())
+      return 0;
+    if (!transactionsEnabled)
+      return readFromFile(position, dst);
+    return readRecord(xares.get(getCurrentThreadId()), position, dst);
   }
 
   /**
@@ -937,14 +1583,8 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException   if an I/O error occurs.
    */
   public char readChar() throws IOException {
-    int[] ints = readRecord(Character.SIZE/Byte.SIZE);
-
-    int ch1 = ints[0];
-    int ch2 = ints[1];
-    if ((ch1 | ch2) < 0) {
-      throw new EOFException();
-    }
-    return (char) ((ch1 << 8) + (ch2));
+    byte[] bs = readRecord(Character.SIZE/Byte.SIZE);
+    return (char) (((bs[0] & 0xFF) << 8) + (bs[1] & 0xFF));
   }
 
   /**
@@ -977,7 +1617,8 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException   if an I/O error occurs.
    */
   public long readLong() throws IOException {
-    return ((long) (readInt()) << 32) + (readInt() & 0xFFFFFFFFL);
+    byte[] bs = readRecord(Long.SIZE/Byte.SIZE);
+    return ((long) (getInt(bs, 0)) << 32) + (getInt(bs, 4) & 0xFFFFFFFFL);
   }
 
   /**
@@ -991,11 +1632,11 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException  if an I/O error occurs.
    */
   public void writeLong(long l) throws IOException {
-    int[] ls = new int[]{((int) (l >>> 56) & 0xFF), ((int) (l >>> 48) & 0xFF),
-                         ((int) (l >>> 40) & 0xFF), ((int) (l >>> 32) & 0xFF),
-                         ((int) (l >>> 24) & 0xFF), ((int) (l >>> 16) & 0xFF),
-                         ((int) (l >>> 8) & 0xFF), ((int) (l) & 0xFF)};
-    writeRecord(ls);
+    byte[] ls = new byte[]{(byte) (l >>> 56), (byte) (l >>> 48),
+                           (byte) (l >>> 40), (byte) (l >>> 32),
+                           (byte) (l >>> 24), (byte) (l >>> 16),
+                           (byte) (l >>> 8), (byte) (l)};
+    writeRecord(ls, 0, ls.length);
   }
 
   /**
@@ -1007,7 +1648,7 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException  if an I/O error occurs.
    */
   public void write(int b) throws IOException {
-    writeRecord(new int[]{b});
+    writeRecord(new byte[]{(byte) b}, 0, 1);
   }
 
   /**
@@ -1019,9 +1660,9 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException  if an I/O error occurs.
    */
   public void writeInt(int n) throws IOException {
-    int[] ls = new int[]{((n >>> 24) & 0xFF), ((n >>> 16) & 0xFF),
-        ((n >>> 8) & 0xFF), ((n) & 0xFF)};
-    writeRecord(ls);
+    byte[] ls = new byte[]{(byte) (n >>> 24), (byte) (n >>> 16),
+        (byte) (n >>> 8), (byte) (n)};
+    writeRecord(ls, 0, ls.length);
   }
 
   /**
@@ -1089,7 +1730,7 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @param      b   a <code>byte</code> value to be written.
    * @exception  IOException  if an I/O error occurs.
    */
-  public synchronized void writeByte(int b) throws IOException {
+  public void writeByte(int b) throws IOException {
     write(b);
   }
 
@@ -1097,39 +1738,100 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * Internal method used by write oprations in the <code>XAFile</code>.
    * If Transactions are disabled, bytes are written directly to the file.
    * If Transactions are enabled the given <code>bytes</code> are written
-   * to the memory (added in a hashtable).
+   * to the memory (added in a {@link WriteSet}).
    * <p>
    * The method may be called by different threads. To prevent different
    * Transactions to modify an already modified record by another
    * Transaction a lock in <code>WRITE</code> mode is acquired. If the lock
    * is finally <code>GRANTED</code> the <code>bytes<code> are added
    * to the list of modified records in the correct <code>XAResourceManager</code>.
+   * The given array is not copied; it is only read before the method returns.
+   * Transactional writes only touch the file pointer of the current
+   * Transaction and are not serialised on the <code>XAFile</code>.
    *
    * @param bytes the array of bytes to write to the file
+   * @param off the start offset in <code>bytes</code>
+   * @param len the number of bytes to write
    * @exception IOException if an I/O error occurs
    * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if lock is <code>REFUSED</code>
    */
-  private synchronized void writeRecord(int[] bytes) throws IOException {
+  private void writeRecord(byte[] bytes, int off, int len) throws IOException {
     if (transactionsEnabled) { // write bytes to the memory first
       long curthr = getCurrentThreadId();
       int lockRes;
 
       XAResourceManager xareMngr = xares.get(curthr);
 
-      DataRecord dr = new DataRecord(raf.getFilePointer(), bytes.length, bytes);
-      lockRes = acquireLockOn(dr, xareMngr.getXid(), LockMode.WRITE);
+      long startPos = xareMngr.getFilePointer();
+      lockRes = writeRecord(xareMngr, startPos, bytes, off, len);
 
       if (lockRes == LockResult.GRANTED) {
-        xareMngr.addUpdatedBytes(raf.getFilePointer(), bytes);
-        xareMngr.add2Log(dr);
-        raf.skipBytes(bytes.length);
+        xareMngr.setFilePointer(startPos + len); // may move past the end of the file
       }
     } else {  // write bytes directly to the file
               // XAFile will now behave like a RandomAccessFile
-      commitUpdates(raf.getFilePointer(), bytes.length, getBytesFromInts(bytes));
+      long[] fp = getThreadFilePointer();
+      if (fp != null) {
+        writeToFile(fp[0], bytes, off, len);
+        fp[0] += len;
+        return;
+      }
+      synchronized (this) {
+        commitUpdates(raf.getFilePointer(), bytes, off, len);
+      }
     }
   }
 
+  /**
+   * Adds <code>len</code> bytes at the given <code>position</code> to the
+   * updates of a Transaction, after acquiring a lock in <code>WRITE</code>
+   * mode on the range. The bytes are copied into the {@link WriteSet} of
+   * the Transaction, which logs their final images; the file pointer is not
+   * changed.
+   *
+   * @param xare the resource manager of the Transaction
+   * @param position the position in the file of the first byte to write
+   * @param bytes the array of bytes to write to the file
+   * @param off the start offset in <code>bytes</code>
+   * @param len the number of bytes to write
+   * @return the {@link com.arjuna.ats.txoj.LockResult} of the lock
+   * @exception IOException if an I/O error occurs
+   * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if lock is <code>REFUSED</code>
+   */
+  private int writeRecord(XAResourceManager xare, long position, byte[] bytes,
+                          int off, int len) throws IOException {
+    int lockRes = acquireLockOn(position, len, xare.getXid(), LockMode.WRITE);
+    if (lockRes == LockResult.GRANTED) {
+      xare.addUpdatedBytes(position, bytes, off, len);
+    }
+    return lockRes;
+  }
+
+  /**
+   * Adds the remaining bytes of <code>src</code> at the given
+   * <code>position</code> to the updates of a Transaction, after acquiring
+   * a lock in <code>WRITE</code> mode on the range. The bytes are copied
+   * once, straight from the buffer into the {@link WriteSet} of the
+   * Transaction, and the position of the buffer is advanced to its limit
+   * if the lock is granted.
+   *
+   * @param xare the resource manager of the Transaction
+   * @param position the position in the file of the first byte to write
+   * @param src the buffer holding the bytes to write
+   * @return the {@link com.arjuna.ats.txoj.LockResult} of the lock
+   * @exception IOException if an I/O error occurs
+   * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if lock is <code>REFUSED</code>
+   * @see #writeRecord(XAResourceManager, long, byte[], int, int)
+   */
+  private int writeRecord(XAResourceManager xare, long position, ByteBuffer src)
+      throws IOException {
+    int lockRes = acquireLockOn(position, src.remaining(), xare.getXid(), LockMode.WRITE);
+    if (lockRes == LockResult.GRANTED) {
+      xare.addUpdatedBytes(position, src);
+    }
+    return lockRes;
+  }
+
   /**
    * Attempts to write a <code>short</code> to the file as two bytes, high
    * byte first. The write starts at the current position of the file pointer.
@@ -1142,8 +1844,8 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @see XAFile#readShort()
    */
   public void writeShort(int s) throws IOException {
-    int[] ss = new int[]{(s >>> 8 & 0xFF), ((s) & 0xFF)};
-    writeRecord(ss);
+    byte[] ss = new byte[]{(byte) (s >>> 8), (byte) (s)};
+    writeRecord(ss, 0, ss.length);
   }
 
   /**
@@ -1166,10 +1868,187 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
     if (off < 0 || len < 0 || off + len > bytes.length)
       throw new IndexOutOfBoundsException("bytes.length=" + bytes.length +
           ", off=" + off + ", len=" + len);
-    
-    byte[] newByteArray = new byte[len];
-    System.arraycopy(bytes, off, newByteArray, 0, len);
-    writeRecord(getIntsFromBytes(newByteArray));
+
+    writeRecord(bytes, off, len);
+  }
+
+  /**
+   * Attempts to write the remaining bytes of <code>src</code> to this file,
+   * starting at the given <code>position</code>. The file pointer is not
+   * changed and the position of the buffer is advanced to its limit.
+   * <p>
+   * In Transactional mode the bytes are locked in <code>WRITE</code> mode and
+   * are written to the file only after a commit operation call, like the
+   * other write operations. The bytes are copied, so the buffer may be
+   * reused once the method returns; heap and direct buffers alike are
+   * copied once, straight into the updates of the Transaction, from which
+   * the log records are encoded. If Transactions are disabled the bytes
+   * are written at once with positional I/O, which passes direct buffers
+   * to the file's channel without copying them.
+   *
+   * @param src the buffer holding the bytes to write
+   * @param position the position in the file to write the first byte
+   * @return the number of bytes written
+   * @exception IOException if an I/O error occurs
+   * @exception IllegalArgumentException if <code>position</code> is negative
+   * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if lock is <code>REFUSED</code>
+   * @see XAFile#read(ByteBuffer, long)
+   */
+  public int write(ByteBuffer src, long position) throws IOException {
+    if (position < 0)
+      throw new IllegalArgumentException("Negative position");
+    int len = src.remaining();
+    if (len == 0)
+      return 0;
+    if (!transactionsEnabled) {
+      writeToFile(position, src);
+      return len;
+    }
+
+    XAResourceManager xare = xares.get(getCurrentThreadId());
+    writeRecord(xare, position, src);
+    src.position(src.limit());
+    return len;
+  }
+
+  /**
+   * Attempts to transfer up to <code>count</code> bytes from the given
+   * channel into this file, starting at the given <code>position</code>.
+   * The file pointer is not changed.
+   * <p>
+   * If Transactions are disabled the bytes are transferred at once with
+   * {@link FileChannel#transferFrom}, which lets the operating system move
+   * them without copying them through the Java heap. In Transactional mode
+   * the bytes are read from <code>src</code> in chunks of
+   * <code>Globals.TRANSFER_CHUNK_SIZE</code> bytes, each of which is locked
+   * in <code>WRITE</code> mode and added to the updates and the log of the
+   * Transaction as a single record. The chunks are aligned on the blocks of
+   * the {@link WriteSet}, so each chunk is kept as an extent of its own
+   * rather than merged into one extent with the whole transfer. The bytes
+   * are held in memory until the Transaction ends and are written to the
+   * file only after a commit operation call; if the heap cannot hold them
+   * the transfer fails with an <code>IOException</code>, after which the
+   * Transaction should be rolled back.
+   * <p>
+   * Fewer than <code>count</code> bytes are transferred if <code>src</code>
+   * reaches its end, or if it is non-blocking and has no more bytes
+   * immediately available.
+   *
+   * @param src the channel to read the bytes from
+   * @param position the position in the file to write the first byte
+   * @param count the maximum number of bytes to transfer
+   * @return the number of bytes transferred
+   * @exception IOException if an I/O error occurs
+   * @exception IllegalArgumentException if <code>position</code> or
+   *            <code>count</code> is negative
+   * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if lock is <code>REFUSED</code>
+   * @see XAFile#transferTo(long, long, WritableByteChannel)
+   */
+  public long transferFrom(ReadableByteChannel src, long position, long count)
+      throws IOException {
+    if (position < 0 || count < 0)
+      throw new IllegalArgumentException("position=" + position + ", count=" + count);
+    if (!transactionsEnabled) {
+      long n = channel.transferFrom(src, position, count);
+      PageCache pc = pageCache;
+      if (pc != null)
+        pc.clear(); // the transferred bytes did not pass through the cache
+      return n;
+    }
+
+    XAResourceManager xare = xares.get(getCurrentThreadId());
+    int chunkSize = Math.min(Globals.TRANSFER_CHUNK_SIZE, Globals.WRITE_SET_EXTENT_SIZE);
+    ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(count, chunkSize));
+    long n = 0;
+    while (n < count) {
+      long p = position + n;
+      chunk.clear();
+      chunk.limit((int) Math.min(Math.min(chunk.capacity(), chunkSize - p % chunkSize), count - n));
+      while (chunk.hasRemaining() && src.read(chunk) > 0)
+        ;
+      int len = chunk.position();
+      if (len > 0) {
+        try {
+          writeRecord(xare, p, chunk.array(), 0, len);
+        } catch (OutOfMemoryError oome) {
+          IOException ioe = new IOException("Not enough memory to hold the " + (n + len) +
+              " bytes transferred into the Transaction");
+          ioe.initCause(oome);
+          throw ioe;
+        }
+      }
+      n += len;
+      if (chunk.hasRemaining())
+        break; // no more bytes available
+    }
+    return n;
+  }
+
+  /**
+   * Attempts to transfer up to <code>count</code> bytes of this file (or
+   * memory if there are uncommitted byte updates), starting at the given
+   * <code>position</code>, to the given channel. The file pointer is not
+   * changed.
+   * <p>
+   * If Transactions are disabled the bytes are transferred at once with
+   * {@link FileChannel#transferTo}. In Transactional mode the range is
+   * locked in <code>READ</code> mode in chunks of
+   * <code>Globals.TRANSFER_CHUNK_SIZE</code> bytes; chunks the Transaction
+   * has not updated are still transferred by the file's channel, while the
+   * others are read into a buffer with the updates patched over them.
+   * <p>
+   * Fewer than <code>count</code> bytes are transferred if the end of the
+   * file is reached, or if <code>target</code> is non-blocking and does not
+   * accept more bytes.
+   *
+   * @param position the position in the file of the first byte to transfer
+   * @param count the maximum number of bytes to transfer
+   * @param target the channel to write the bytes to
+   * @return the number of bytes transferred
+   * @exception IOException if an I/O error occurs
+   * @exception IllegalArgumentException if <code>position</code> or
+   *            <code>count</code> is negative
+   * @exception org.jboss.jbossts.fileio.xalib.txfiles.exceptions.LockRefusedException if a lock cannot be <code>GRANTED</code>
+   * @see XAFile#transferFrom(ReadableByteChannel, long, long)
+   */
+  public long transferTo(long position, long count, WritableByteChannel target)
+      throws IOException {
+    if (position < 0 || count < 0)
+      throw new IllegalArgumentException("position=" + position + ", count=" + count);
+    if (!transactionsEnabled)
+      return channel.transferTo(position, count, target);
+
+    XAResourceManager xare = xares.get(getCurrentThreadId());
+    ByteBuffer chunk = null;
+    long n = 0;
+    while (n < count) {
+      long pos = position + n;
+      int len = (int) Math.min(count - n, Globals.TRANSFER_CHUNK_SIZE);
+      long sent;
+      if (!xare.getWriteSet().overlaps(pos, len)) {
+        acquireLockOn(pos, len, xare.getXid(), LockMode.READ);
+        sent = channel.transferTo(pos, len, target);
+      } else {
+        if (chunk == null)
+          chunk = ByteBuffer.allocate((int) Math.min(count, Globals.TRANSFER_CHUNK_SIZE));
+        chunk.clear();
+        chunk.limit(len);
+        if (readRecord(xare, pos, chunk) < 0)
+          break;
+        chunk.flip();
+        while (chunk.hasRemaining() && target.write(chunk) > 0)
+          ;
+        sent = chunk.position();
+        if (chunk.hasRemaining()) { // the target does not accept more bytes
+          n += sent;
+          break;
+        }
+      }
+      if (sent == 0)
+        break;
+      n += sent;
+    }
+    return n;
   }
 
   /**
@@ -1213,8 +2092,8 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @see XAFile#readChar()
    */
   public void writeChar(int ch) throws IOException {
-    int[] chs = new int[]{((ch >>> 8) & 0xFF), ((ch) & 0xFF)};
-    writeRecord(chs);
+    byte[] chs = new byte[]{(byte) (ch >>> 8), (byte) (ch)};
+    writeRecord(chs, 0, chs.length);
   }
 
   /**
@@ -1275,13 +2154,21 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
   }
 
   /**
-   * Returns the current offset in this file.
+   * Returns the current offset in this file. If the current thread is
+   * associated with a Transaction, the offset of that Transaction is
+   * returned.
    *
    * @return     the offset from the beginning of the file, in bytes,
    *             at which the next attempt of read or write occurs.
    * @exception  IOException  if an I/O error occurs.
    */
   public long getFilePointer() throws IOException {
+    XAResourceManager xare = getCurrentTransaction();
+    if (xare != null)
+      return xare.getFilePointer();
+    long[] fp = getThreadFilePointer();
+    if (fp != null)
+      return fp[0];
     return raf.getFilePointer();
   }
 
@@ -1301,7 +2188,19 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    * @exception  IOException  if an I/O error occurs.
    */
   public int skipBytes(int n) throws IOException {
-    return raf.skipBytes(n);
+    XAResourceManager xare = getCurrentTransaction();
+    long[] fp = (xare == null) ? getThreadFilePointer() : null;
+    if (xare == null && fp == null)
+      return raf.skipBytes(n);
+    if (n <= 0)
+      return 0;
+    long pos = (xare != null) ? xare.getFilePointer() : fp[0];
+    long newpos = Math.min(pos + n, length());
+    if (xare != null)
+      xare.setFilePointer(newpos);
+    else
+      fp[0] = newpos;
+    return (int) (newpos - pos);
   }
 
   /**
@@ -1337,6 +2236,29 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
     return th_id;
   }
 
+  /**
+   * Returns the <code>XAResourceManager</code> of the Transaction associated
+   * with the current thread, or <code>null</code> if Transactions are disabled
+   * or the current thread is not associated with any Transaction.
+   * @return the current Transaction's resource manager, or <code>null</code>
+   */
+  private XAResourceManager getCurrentTransaction() {
+    if (!transactionsEnabled)
+      return null;
+    return xares.get(Thread.currentThread().getId());
+  }
+
+  /**
+   * Returns the file pointer of the current thread, or <code>null</code>
+   * if the file is not in positional access mode.
+   * @return a single-element array holding the thread's file pointer, or
+   *         <code>null</code>
+   */
+  private long[] getThreadFilePointer() {
+    ThreadLocal<long[]> fps = filePointers;
+    return (fps != null) ? fps.get() : null;
+  }
+
   /**
    * Used by <code>XAResourceManager</code> after starting-up
    * recovery procedure
@@ -1344,38 +2266,20 @@ public class XAFile implements DataInput, DataOutput, Serializable, Closeable
    */
   protected void initRAF() throws FileNotFoundException {
     raf = new RandomAccessFile(filename, mode);
+    channel = raf.getChannel();
   }
 
   /**
-   * Converts an array of type <code>int</code> to an array of
-   * type <code>byte</code> and returns that.
+   * Assembles an <code>int</code> from four bytes of the given array,
+   * high byte first.
    *
-   * @param ints the array to convert into a <code>byte</code> array
-   * @return an array of bytes containing the values from the
-   *         <code>ints</code> array
+   * @param bytes the array which holds the bytes
+   * @param off the index of the high byte
+   * @return the <code>int</code> represented by the four bytes
    */
-  protected static byte[] getBytesFromInts(int[] ints) {
-    byte[] bytes = new byte[ints.length];
-    for (int b = 0; b < ints.length; b++) {
-      bytes[b] = (byte) ints[b];
-    }
-    return bytes;
-  }
-
-  /**
-   * Converts an array of type <code>byte</code> to an array of
-   * type <code>int</code> and returns that.
-   *
-   * @param bytes the array to convert into an <code>int</code> array
-   * @return an array of <code>int</code> containing the values from the
-   *         <code>bytes</code> array.
-   */
-  protected static int[] getIntsFromBytes(byte[] bytes) {
-    int[] ints = new int[bytes.length];
-    for (int i = 0; i < bytes.length; i++) {
-      ints[i] = bytes[i];
-    }
-    return ints;
+  private static int getInt(byte[] bytes, int off) {
+    return ((bytes[off] & 0xFF) << 24) + ((bytes[off+1] & 0xFF) << 16) +
+           ((bytes[off+2] & 0xFF) << 8) + (bytes[off+3] & 0xFF);
   }
 
   protected void finalize() throws Throwable {  //todo comments
@@ -30,6 +30,7 @@ import javax.transaction.xa.XAException;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -41,20 +42,26 @@ import java.util.*;
  * which distinguishes by the other objects of this class and is associated
  * with a Transaction. Each <code>XAResourceManager</code> instance has also
  * a <code>log</code> ({@link RecordsLogger} object) to write information
- * about the bytes that have been updated by <code>XAFile</code>. The updates
- * are also added into a hashtable (depending on the starting position of the bytes
- * that make up a {@link DataRecord} each time. If no crash has occured the
+ * about the bytes that have been updated by <code>XAFile</code> to the
+ * write-ahead log shared by the Transactions of the file. The updates
+ * are added into a {@link WriteSet} which merges them into contiguous
+ * ranges sorted by their position in the file. The ranges of bytes updated
+ * since the last logging are merged the same way, and the bytes of the write
+ * set within them are logged at prepare time, or once they exceed
+ * <code>Globals.LOG_COALESCE_SIZE</code> bytes, so the log holds the final
+ * image of each range rather than every write, and log records are encoded
+ * straight from the arrays of the write set. If no crash has occured the
  * Resource manager will retrieve information about the requested records using
- * its hashtable in memory. In a situation where a system failure occured and
+ * its write set in memory. In a situation where a system failure occured and
  * the system tries to recover, the logs will be used to obtain the requested
  * information.
  * <p>
  * The requested information will be written back to the original file only if
  * Transaction Manager decides to commit and asks from the Resource Manager to
- * commit and delete the log file. If Transaction Manager decides a rollback
- * operation the Resource Manager invokes its own rollback operation which will
- * cause all updates made so far to be removed and the log file to be deleted. 
- * When the log is deleted (either in commit or rollback invocations) the thread
+ * commit and mark its records in the log as ended. If Transaction Manager decides a
+ * rollback operation the Resource Manager invokes its own rollback operation which
+ * will cause all updates made so far to be removed and the records to be marked as
+ * ended. When the records are marked (either in commit or rollback invocations) the thread
  * is disassociated from the corresponding transaction.
  *
  * @author Ioannis Ganotis
@@ -63,6 +70,7 @@ import java.util.*;
  * @see XAFile
  * @see RecordsLogger
  * @see DataRecord
+ * @see WriteSet
  */
 public class XAResourceManager implements XAResource, Serializable
 {
@@ -73,7 +81,11 @@ public class XAResourceManager implements XAResource, Serializable
   private long th_id;
   transient private final int DEFAULT_TIMEOUT = 60;
   private boolean recovers;
-  transient private Hashtable<Long, Integer> updatedBytes;
+  transient private WriteSet writeSet;
+  // start -> end of the disjoint ranges updated since the last logging
+  transient private TreeMap<Long, Long> unlogged;
+  transient private long unloggedSize;
+  transient private long filePointer;
 
   /**
    * Constructor to create Resource Manager objects. Each of these
@@ -96,16 +108,19 @@ public class XAResourceManager implements XAResource, Serializable
     this.th_id = th_id;
     timeout = DEFAULT_TIMEOUT;
     recovers = false;
-    updatedBytes = new Hashtable<Long, Integer>(89);
+    writeSet = new WriteSet();
+    unlogged = new TreeMap<Long, Long>();
   }
 
   /**
    * Method to prepare a transaction with the given <code>xid</code> to
    * commit.
    * <p>
-   * The method forces system-memory buffers to write their data to the
-   * log file to ensure all the updates that are to be applied to the
-   * file are included in the log. The log file is then closed.
+   * The method logs the final images of the bytes updated since the last
+   * logging and forces system-memory buffers to write their data to the
+   * log to ensure all the updates that are to be applied to the file are
+   * included in the log. Transactions preparing at the same time share
+   * the synchronization of the log.
    *
    * @param xid a global Transaction id
    * @return  <code>XA_OK</code> after synchronizing the log
@@ -115,6 +130,7 @@ public class XAResourceManager implements XAResource, Serializable
     // flush data on disk here
     System.out.println("XAResourceManager.prepare(Xid=" + xid + "), th_id=" + th_id);
     try {
+      logUpdates();
       log.flush();
       log.close();
     } catch (IOException e) {
@@ -128,7 +144,7 @@ public class XAResourceManager implements XAResource, Serializable
    * Method to commit the global transaction with the given <code>xid</code>.
    * <p>
    * If this method is not invoked by a Recovery Manager, then the updated
-   * bytes will be read from the hashtable that contains them and will be
+   * bytes will be read from the write set that contains them and will be
    * written back to the original source file. In case there was a system
    * failure, the same procedure will be followed but the updated bytes
    * will be read from the log file instead of the memory, as memory will
@@ -242,8 +258,8 @@ public class XAResourceManager implements XAResource, Serializable
   /**
    * Rollback any updates attempted to be written to the file.
    * <p>
-   * The method closes the log file and deletes it as it is not
-   * useful anymore. It also deletes the bytes from the hashtable
+   * The method marks the records of the Transaction in the log as ended,
+   * as they are not useful anymore. It also deletes the bytes from the write set
    * and disassociates the transaction with the given <code>xid</code>
    * from the thread that initiated it, if not called by the Recovery
    * Manager.
@@ -262,7 +278,9 @@ public class XAResourceManager implements XAResource, Serializable
 
     if (!recovers) { // normal operation (memory)
       th_id = this.th_id;
-      updatedBytes.clear();
+      writeSet.clear();
+      unlogged.clear();
+      unloggedSize = 0;
     }
     try {
       xaFile.removeTransaction(currentXid, recovers);
@@ -330,69 +348,42 @@ public class XAResourceManager implements XAResource, Serializable
     if (recovers) { // after a crash occured
       th_id = Globals.RECOVERY_ID;
     }
-    LinkedList<DataRecord> records = retrieveRecords();
+    List<DataRecord> records = retrieveRecords();
 
-    for (DataRecord dr : records) {
-      xaFile.commitUpdates(dr.getStartPosition(),
-          dr.getRecordLength(), dr.getRecordBytes(), th_id);
-    }
-    xaFile.sync(); // Force updates to be written to the file
+    xaFile.commitUpdates(records, th_id);
+    xaFile.syncCommitted(); // Force updates to be written to the file
     if (!recovers) { // normal operation(memory)
-      updatedBytes.clear();
+      writeSet.clear();
+      unlogged.clear();
+      unloggedSize = 0;
     }
     xaFile.removeTransaction(currentXid, recovers);
   }
 
   /**
    * Returns a list with the records (updates) written by some write
-   * operation in the <code>XAFile</code>. It either reads the records
-   * from the hashtable in memory (if not in recover phase), or from
+   * operation in the <code>XAFile</code>. It either takes the records
+   * from the write set in memory (if not in recover phase), or from
    * the <code>log</code> file which contains all the updates (if the
-   * system tries to recover).
+   * system tries to recover). The log entries are replayed, in the order
+   * they were written, into a new write set, so in both cases the records
+   * are merged, disjoint and sorted by their position in the file.
    *
    * @return a list with <code>DataRecord</code> objects that contain
    *         the updated data
    * @exception IOException if an I/O error occurs
    */
-  private LinkedList<DataRecord> retrieveRecords() throws IOException {
-    LinkedList<DataRecord> records = new LinkedList<DataRecord>();
+  private List<DataRecord> retrieveRecords() throws IOException {
     if (recovers) {
+      WriteSet logged = new WriteSet();
       LinkedList<LogEntry> logRecords = log.readAllRecords();
       for (LogEntry entry : logRecords) {
-        try {
-          DataRecord dr = new DataRecord(entry.getPosition(), entry.getRecordLength(),
-              XAFile.getIntsFromBytes(entry.getData()));
-          records.add(dr);
-        } catch (Exception ioe) {
-          ioe.printStackTrace();
-        }
-      }
-    } else {
-      Set<Map.Entry<Long, Integer>> set = updatedBytes.entrySet();
-      Iterator<Map.Entry<Long, Integer>> it = set.iterator();
-
-      while (it.hasNext()) {
-        int[] bs = new int[set.size()];
-        Map.Entry<Long, Integer> kvPair = it.next();
-        long position = kvPair.getKey();
-        int b = kvPair.getValue();
-        int index = bs.length-1;
-        bs[index] = b;
-        while (it.hasNext()) {
-          kvPair = it.next();
-          if (position - kvPair.getKey() == 1) {
-            index--;
-            bs[index] = kvPair.getValue();
-            position = kvPair.getKey();
-          } else
-            break;
-        }
-        int[] bytes = new int[bs.length - index];
-        System.arraycopy(bs, 0, bytes, 0, bytes.length);
-        records.add(new DataRecord(position-index, bytes.length, bytes));
+        logged.add(entry.getPosition(), entry.getData(), entry.getOffset(),
+            entry.getRecordLength());
       }
+      return logged.getRecords();
     }
-    return records;
+    return writeSet.getRecords();
   }
 
   /**
@@ -403,10 +394,51 @@ public class XAResourceManager implements XAResource, Serializable
    * @exception IOException if an I/O error occurs
    */
   protected void add2Log(DataRecord dr) throws IOException {
-    LogEntry le = new LogEntry(dr.getStartPosition(), dr.getRecordLength(), dr.getRecordBytes());
+    LogEntry le = new LogEntry(dr.getStartPosition(), dr.getRecordBytes(),
+        dr.getRecordOffset(), dr.getRecordLength());
     log.addInfo(le);
   }
 
+  /**
+   * Adds to the <code>log</code> the final images of the ranges updated
+   * since the last logging, so bytes written many times are logged once.
+   * @exception IOException if an I/O error occurs
+   */
+  private void logUpdates() throws IOException {
+    for (Map.Entry<Long, Long> range : unlogged.entrySet()) {
+      long start = range.getKey();
+      for (DataRecord dr : writeSet.getRecords(start, range.getValue() - start)) {
+        add2Log(dr);
+      }
+    }
+    unlogged.clear();
+    unloggedSize = 0;
+  }
+
+  /**
+   * Merges the range of <code>len</code> bytes starting at
+   * <code>position</code> into the ranges not logged yet, and logs them
+   * once they exceed <code>Globals.LOG_COALESCE_SIZE</code> bytes.
+   */
+  private void updated(long position, int len) throws IOException {
+    long start = position;
+    long end = position + len;
+    Map.Entry<Long, Long> floor = unlogged.floorEntry(start);
+    if (floor != null && floor.getValue() >= start)
+      start = floor.getKey(); // overlaps or touches the range
+    Iterator<Map.Entry<Long, Long>> it = unlogged.subMap(start, true, end, true).entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Long, Long> range = it.next();
+      end = Math.max(end, range.getValue());
+      unloggedSize -= range.getValue() - range.getKey();
+      it.remove();
+    }
+    unlogged.put(start, end);
+    unloggedSize += end - start;
+    if (unloggedSize >= Globals.LOG_COALESCE_SIZE)
+      logUpdates();
+  }
+
   /**
    * Returns the global Transaction id associated with this
    * <code>XAResourceManager</code>
@@ -420,25 +452,69 @@ public class XAResourceManager implements XAResource, Serializable
   /**
    * Returns all the updated bytes that have been modified by the
    * transaction with <code>currentXid</code>.
-   * @return all the updated bytes that have been stored in the
-   *         table by previous <code>write</code> operations.
+   * @return the write set that holds the bytes stored by previous
+   *         <code>write</code> operations.
    */
-  protected Hashtable<Long, Integer> getUpdatedBytes() {
-    return updatedBytes;
+  protected WriteSet getWriteSet() {
+    return writeSet;
   }
 
   /**
-   * Adds the given <code>bytes</code> to the table that keeps all
-   * the <code>updatedBytes</code>. The array is treated as a group
+   * Returns the file pointer of this Transaction, i.e. the offset in the
+   * <code>XAFile</code> at which its next read or write occurs.
+   * @return the offset of this Transaction's next read or write
+   */
+  protected long getFilePointer() {
+    return filePointer;
+  }
+
+  /**
+   * Sets the file pointer of this Transaction. Other Transactions on the
+   * same <code>XAFile</code> keep their own file pointers.
+   * @param filePointer the offset of this Transaction's next read or write
+   */
+  protected void setFilePointer(long filePointer) {
+    this.filePointer = filePointer;
+  }
+
+  /**
+   * Adds the given <code>bytes</code> to the write set that keeps all
+   * the updated bytes. The array is treated as a group
    * of modified bytes (record) with its first byte located at
    * <code>startPosition</code> in the Transactional File.
+   * <p>
+   * The range of the bytes is also merged into the ranges not logged yet,
+   * which are logged from the write set once they exceed
+   * <code>Globals.LOG_COALESCE_SIZE</code> bytes; a record at least that
+   * large is logged at once.
    *
    * @param startPosition the position in the file where the record starts
    * @param bytes an array that includes all the updated bytes to be stored
+   * @param off the index in <code>bytes</code> of the first updated byte
+   * @param len the number of updated bytes
+   * @exception IOException if an I/O error occurs while logging
+   */
+  protected void addUpdatedBytes(long  startPosition, byte[] bytes, int off, int len)
+      throws IOException {
+    writeSet.add(startPosition, bytes, off, len);
+    updated(startPosition, len);
+  }
+
+  /**
+   * Adds the remaining bytes of the given buffer to the write set, with
+   * its first byte located at <code>startPosition</code> in the
+   * Transactional File. The bytes are copied once, into the write set,
+   * and the position of the buffer is advanced to its limit.
+   *
+   * @param startPosition the position in the file where the record starts
+   * @param src the buffer holding the updated bytes
+   * @exception IOException if an I/O error occurs while logging
+   * @see #addUpdatedBytes(long, byte[], int, int)
    */
-  protected void addUpdatedBytes(long  startPosition, int[] bytes) {
-    for (int b : bytes)
-      updatedBytes.put(startPosition++, b);
+  protected void addUpdatedBytes(long startPosition, ByteBuffer src) throws IOException {
+    int len = src.remaining();
+    writeSet.add(startPosition, src);
+    updated(startPosition, len);
   }
 
   /**
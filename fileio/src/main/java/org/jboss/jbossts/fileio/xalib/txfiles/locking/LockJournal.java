@@ -0,0 +1,442 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.locking;
+
+import javax.transaction.xa.Xid;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.jboss.jbossts.fileio.xalib.Globals;
+
+/**
+ * This class persists the changes of a {@link LockTable} in a <em>locks file</em>
+ * as an append-only journal of fixed-width binary records.
+ * <p>
+ * A <code>GRANT</code> record holds a lock as it was requested and a
+ * <code>RELEASE</code> record holds the <code>Xid</code> of a Transaction whose
+ * locks have been released; replaying the records in order rebuilds the lock
+ * table. Each record ends with a CRC32 checksum of its contents and is
+ * written in a single positional write together with an
+ * empty record marking the end of the journal, so the cost of persisting a
+ * change does not depend on the number of held locks. The file is kept open
+ * and preallocated in steps of <code>Globals.LOCK_JOURNAL_PREALLOCATE</code>
+ * records. When the journal has grown long compared to the table it is
+ * compacted: a new journal with one <code>GRANT</code> record per held lock is
+ * written to a temporary file, forced to the storage device and renamed over
+ * the <em>locks file</em>.
+ * <p>
+ * The journal is never rewritten in place, as replaying stops only at the
+ * first empty record, or at the first record whose checksum does not match:
+ * a crash in the middle of rewriting it would leave the start of the new
+ * records followed by stale records of the old ones. A crash while
+ * compacting leaves either the old journal or the new one, and a temporary
+ * file left by such a crash is deleted when the journal is opened.
+ * <p>
+ * The journal has a single writer: the end of the journal, and the locks a
+ * compaction keeps, are those known to the writing process only. Any number
+ * of journals may read the <em>locks file</em>, but the first change written
+ * through a journal makes it the owner of the file, holding an operating
+ * system lock on a sidecar file until it is closed, and a change written
+ * through any other journal, in this VM or in another one, is refused with an
+ * <code>IOException</code>. Processes sharing a Transactional file must use
+ * the <em>inter-process</em> mode of {@link XALockManager} instead.
+ *
+ * @see XALockManager
+ */
+public class LockJournal
+{
+  private static final byte END = 0;
+  private static final byte GRANT = 1;
+  private static final byte RELEASE = 2;
+  // type, mode, gtrid length, bqual length, format id, start, length, gtrid, bqual, checksum
+  protected static final int RECORD_SIZE = 4 + 4 + 8 + 8 + Xid.MAXGTRIDSIZE + Xid.MAXBQUALSIZE + 4;
+  private static final String COMPACT_SUFFIX = ".compact";
+  protected static final String OWNER_SUFFIX = ".owner";
+  // the journal owning each locks file of this VM, by canonical path
+  private static final Map<String, LockJournal> owners = new HashMap<String, LockJournal>();
+
+  private String filename;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private long end;
+  private int records;
+  private int checkAt = Globals.LOCK_JOURNAL_COMPACT_RECORDS;
+  private String ownerKey;
+  private RandomAccessFile ownerFile;
+  private FileLock ownerLock;
+
+  /**
+   * Constructor to open, or create, the journal kept in the file with the
+   * given <code>filename</code>. The end of an existing journal is found by
+   * scanning its records.
+   *
+   * @param filename the name of the <em>locks file</em>
+   * @exception IOException if an I/O error occurs
+   */
+  protected LockJournal(String filename) throws IOException {
+    this.filename = filename;
+    new File(filename + COMPACT_SUFFIX).delete();
+    raf = new RandomAccessFile(filename, "rw");
+    channel = raf.getChannel();
+    replay(new LockTable());
+  }
+
+  /**
+   * Appends a <code>GRANT</code> record for the given <code>lock</code>.
+   *
+   * @param lock the lock that has been granted
+   * @exception IOException if an I/O error occurs
+   */
+  protected synchronized void grant(XALock lock) throws IOException {
+    append(encode(GRANT, lock.getXid(), lock.getMode(),
+                  lock.getStartPosition(), lock.getLockLength()));
+  }
+
+  /**
+   * Appends a <code>RELEASE</code> record for the Transaction with the
+   * given <code>xid</code>.
+   *
+   * @param xid the global Transaction id whose locks have been released
+   * @exception IOException if an I/O error occurs
+   */
+  protected synchronized void release(Xid xid) throws IOException {
+    append(encode(RELEASE, xid, 0, 0, 0));
+  }
+
+  /**
+   * Replaces the journal with one holding a <code>GRANT</code> record for
+   * each of the given locks, dropping all the other records. The new journal
+   * is written to a temporary file which is then renamed over the
+   * <em>locks file</em>, so the old journal stays intact until it is
+   * replaced.
+   *
+   * @param locks the locks currently held
+   * @exception IOException if an I/O error occurs
+   */
+  protected synchronized void compact(Collection<XALock> locks) throws IOException {
+    own();
+    ByteBuffer buf = ByteBuffer.allocate((locks.size() + 1) * RECORD_SIZE);
+    for (XALock lock : locks) {
+      buf.put(encode(GRANT, lock.getXid(), lock.getMode(),
+                     lock.getStartPosition(), lock.getLockLength()));
+    }
+    buf.put(new byte[RECORD_SIZE]); // end of the journal
+    buf.flip();
+
+    File file = new File(filename);
+    File compacted = new File(filename + COMPACT_SUFFIX);
+    RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+    try {
+      out.setLength(0);
+      ensureCapacity(out, buf.remaining());
+      FileChannel c = out.getChannel();
+      for (long position = 0; buf.hasRemaining(); )
+        position += c.write(buf, position);
+      c.force(true);
+    } catch (IOException ioe) {
+      out.close();
+      compacted.delete();
+      throw ioe;
+    }
+    out.close();
+
+    raf.close();
+    boolean renamed = compacted.renameTo(file);
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    if (!renamed) {
+      compacted.delete();
+      throw new IOException("Unable to replace the locks file <" + filename +
+          "> with its compacted journal.");
+    }
+    end = (long) locks.size() * RECORD_SIZE;
+    records = locks.size();
+    checkAt = Math.max(Globals.LOCK_JOURNAL_COMPACT_RECORDS, 2 * records + 1);
+  }
+
+  /**
+   * Returns true if the journal has grown enough since it was last
+   * compacted or checked for it to be worth counting the held locks.
+   *
+   * @return true if <code>needsCompaction</code> should be called
+   */
+  protected synchronized boolean isCompactionDue() {
+    return records >= checkAt;
+  }
+
+  /**
+   * Returns true if the journal holds many more records than the
+   * <code>held</code> locks they result in, so it is worth compacting.
+   * Otherwise the journal is not due for compaction before it holds twice
+   * as many records as the held locks.
+   *
+   * @param held the number of locks currently held
+   * @return true if the journal should be compacted
+   */
+  protected synchronized boolean needsCompaction(int held) {
+    if (records >= Globals.LOCK_JOURNAL_COMPACT_RECORDS && records > 2 * held)
+      return true;
+    checkAt = Math.max(Globals.LOCK_JOURNAL_COMPACT_RECORDS, 2 * held + 1);
+    return false;
+  }
+
+  /**
+   * Reads the journal from the start and applies its records to the given
+   * <code>table</code>. Granted locks which conflict with the locks of the
+   * table are skipped.
+   *
+   * @param table the table to rebuild
+   * @exception IOException if an I/O error occurs
+   */
+  protected synchronized void replay(LockTable table) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    long position = 0;
+    int count = 0;
+    while (true) {
+      record.clear();
+      while (record.hasRemaining()) {
+        if (channel.read(record, position + record.position()) < 0)
+          break;
+      }
+      if (record.hasRemaining() || record.get(0) == END)
+        break;
+      if (record.getInt(RECORD_SIZE - 4) != checksum(record.array()))
+        break; // torn record
+      record.flip();
+      byte type = record.get();
+      int mode = record.get();
+      int gtridLength = record.get();
+      int bqualLength = record.get();
+      int formatId = record.getInt();
+      long start = record.getLong();
+      long length = record.getLong();
+      byte[] gtrid = new byte[gtridLength];
+      record.get(gtrid);
+      record.position(record.position() + Xid.MAXGTRIDSIZE - gtridLength);
+      byte[] bqual = new byte[bqualLength];
+      record.get(bqual);
+      Xid xid = new JournalXid(formatId, gtrid, bqual);
+
+      if (type == GRANT) {
+        XALock lock = new XALock(xid, mode, start, length);
+        if (!table.conflictsWith(lock))
+          table.grant(lock);
+      } else if (type == RELEASE) {
+        table.release(xid);
+      }
+      position += RECORD_SIZE;
+      count++;
+    }
+    end = position;
+    records = count;
+  }
+
+  /**
+   * Empties the journal without shrinking the file.
+   *
+   * @exception IOException if an I/O error occurs
+   */
+  protected synchronized void clear() throws IOException {
+    own();
+    write(ByteBuffer.allocate(RECORD_SIZE), 0);
+    end = 0;
+    records = 0;
+    checkAt = Globals.LOCK_JOURNAL_COMPACT_RECORDS;
+  }
+
+  /**
+   * Closes the <em>locks file</em>, giving up its ownership.
+   */
+  protected synchronized void close() {
+    try {
+      raf.close();
+      disown();
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+  }
+
+  /**
+   * Makes this journal the owner of the <em>locks file</em>, unless it
+   * already is. The end of the journal is scanned again, as a previous owner
+   * may have appended to it since it was opened.
+   *
+   * @exception IOException if another journal owns the file
+   */
+  private void own() throws IOException {
+    if (ownerLock != null)
+      return;
+    String key = new File(filename).getCanonicalPath();
+    synchronized (owners) {
+      if (owners.containsKey(key))
+        throw refused();
+      RandomAccessFile f = new RandomAccessFile(filename + OWNER_SUFFIX, "rw");
+      FileLock l;
+      try {
+        l = f.getChannel().tryLock();
+      } catch (IOException ioe) {
+        f.close();
+        throw ioe;
+      }
+      if (l == null) {
+        f.close();
+        throw refused();
+      }
+      owners.put(key, this);
+      ownerKey = key;
+      ownerFile = f;
+      ownerLock = l;
+    }
+    replay(new LockTable());
+  }
+
+  private void disown() throws IOException {
+    if (ownerLock == null)
+      return;
+    synchronized (owners) {
+      owners.remove(ownerKey);
+    }
+    ownerLock = null;
+    ownerFile.close(); // releases the lock
+  }
+
+  private IOException refused() {
+    return new IOException("The locks file <" + filename + "> is written by " +
+        "another XALockManager; use inter-process locking to share it.");
+  }
+
+  /**
+   * Writes the record at the end of the journal, followed by an empty
+   * record, in a single positional write.
+   */
+  private void append(byte[] record) throws IOException {
+    own();
+    ensureCapacity(raf, end + 2 * RECORD_SIZE);
+    ByteBuffer buf = ByteBuffer.allocate(2 * RECORD_SIZE);
+    buf.put(record);
+    buf.position(0);
+    write(buf, end);
+    end += RECORD_SIZE;
+    records++;
+  }
+
+  /**
+   * Grows the given file, in steps of <code>Globals.LOCK_JOURNAL_PREALLOCATE</code>
+   * records, so that it holds at least <code>size</code> bytes.
+   */
+  private static void ensureCapacity(RandomAccessFile f, long size) throws IOException {
+    long length = f.length();
+    if (length < size) {
+      long step = (long) Globals.LOCK_JOURNAL_PREALLOCATE * RECORD_SIZE;
+      f.setLength(Math.max(size, length + step));
+    }
+  }
+
+  private void write(ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+
+  /**
+   * Encodes a record; <code>xid</code> must not be <code>null</code>.
+   */
+  private static byte[] encode(byte type, Xid xid, int mode, long start, long length) {
+    byte[] gtrid = xid.getGlobalTransactionId();
+    byte[] bqual = xid.getBranchQualifier();
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    record.put(type);
+    record.put((byte) mode);
+    record.put((byte) gtrid.length);
+    record.put((byte) bqual.length);
+    record.putInt(xid.getFormatId());
+    record.putLong(start);
+    record.putLong(length);
+    record.put(gtrid);
+    record.position(record.position() + Xid.MAXGTRIDSIZE - gtrid.length);
+    record.put(bqual);
+    byte[] bytes = record.array();
+    record.putInt(RECORD_SIZE - 4, checksum(bytes));
+    return bytes;
+  }
+
+  /**
+   * Returns the checksum of a record, computed over all its bytes but the
+   * checksum itself.
+   */
+  private static int checksum(byte[] record) {
+    CRC32 crc = new CRC32();
+    crc.update(record, 0, RECORD_SIZE - 4);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * The <code>Xid</code> of a lock read back from the journal. It is equal
+   * to any <code>Xid</code> with the same format id, global transaction id
+   * and branch qualifier.
+   */
+  private static class JournalXid implements Xid, Serializable
+  {
+    private int formatId;
+    private byte[] gtrid;
+    private byte[] bqual;
+
+    private JournalXid(int formatId, byte[] gtrid, byte[] bqual) {
+      this.formatId = formatId;
+      this.gtrid = gtrid;
+      this.bqual = bqual;
+    }
+
+    public int getFormatId() {
+      return formatId;
+    }
+
+    public byte[] getGlobalTransactionId() {
+      return gtrid.clone();
+    }
+
+    public byte[] getBranchQualifier() {
+      return bqual.clone();
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Xid))
+        return false;
+      Xid xid = (Xid) obj;
+      return formatId == xid.getFormatId() &&
+             Arrays.equals(gtrid, xid.getGlobalTransactionId()) &&
+             Arrays.equals(bqual, xid.getBranchQualifier());
+    }
+
+    public int hashCode() {
+      return formatId ^ Arrays.hashCode(gtrid);
+    }
+  }
+}
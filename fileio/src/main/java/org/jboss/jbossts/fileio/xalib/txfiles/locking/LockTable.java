@@ -0,0 +1,495 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.locking;
+
+import com.arjuna.ats.txoj.LockMode;
+import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * This class keeps a set of {@link XALock}s as disjoint byte-ranges in a
+ * <code>TreeMap</code> keyed by their start position. Each range has a set
+ * of holders, the Transactions locking all of its bytes, each in its own
+ * mode: any number of Transactions in <code>READ</code> mode, or a single one
+ * in <code>WRITE</code> mode.
+ * <p>
+ * A lock conflicts only with the ranges that overlap it, which are found with
+ * one lookup for the range starting at or before the new lock and a walk over
+ * the ranges starting inside it, so checking a lock costs O(log n + k) for
+ * <code>n</code> ranges of which <code>k</code> overlap, whatever the size
+ * of the locks. Readers never conflict with each other. Granting a lock splits
+ * the ranges at its ends and adds the Transaction to the holders of the ranges
+ * in between; a <code>WRITE</code> lock of the only reader of a range upgrades
+ * its mode in place. Neighbouring ranges left with the same holders are
+ * joined.
+ * <p>
+ * The table also indexes the start positions of the ranges held by each
+ * Transaction, so releasing or listing the locks of a Transaction costs
+ * O(k log n) for its <code>k</code> ranges instead of a walk over the table.
+ *
+ * @see XALockManager
+ */
+public class LockTable
+{
+  private TreeMap<Long, Range> ranges;
+  private HashMap<XidKey, TreeSet<Long>> owned;
+
+  /**
+   * Constructor to create an empty <code>LockTable</code>.
+   */
+  protected LockTable() {
+    ranges = new TreeMap<Long, Range>();
+    owned = new HashMap<XidKey, TreeSet<Long>>();
+  }
+
+  /**
+   * Returns true if the given <code>lock</code> conflicts with a lock of
+   * another Transaction in this table.
+   *
+   * @param lock the lock trying to add
+   * @return true if the lock can not be granted; false otherwise
+   */
+  protected boolean conflictsWith(XALock lock) {
+    for (Range range : overlapping(lock.getStartPosition(), lock.getEndPosition())) {
+      for (XALock holder : range.holders) {
+        if (holder.conflictsWith(lock))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the locks of other Transactions the given <code>lock</code>
+   * conflicts with in this table.
+   *
+   * @param lock the lock trying to add
+   * @return the conflicting locks in ascending order
+   */
+  protected List<XALock> getConflicts(XALock lock) {
+    List<XALock> conflicts = new ArrayList<XALock>();
+    for (Range range : overlapping(lock.getStartPosition(), lock.getEndPosition())) {
+      for (XALock holder : range.holders) {
+        if (holder.conflictsWith(lock))
+          conflicts.add(holder);
+      }
+    }
+    return conflicts;
+  }
+
+  /**
+   * Returns true if the Transaction with the given <code>xid</code> holds
+   * any byte of the range of the given <code>lock</code>.
+   *
+   * @param xid the global Transaction id
+   * @param lock the lock whose range to check
+   * @return true if the Transaction holds a lock overlapping the range
+   */
+  protected boolean isHeldBy(Xid xid, XALock lock) {
+    for (Range range : overlapping(lock.getStartPosition(), lock.getEndPosition())) {
+      if (range.holderOf(xid) != null)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the given <code>lock</code> overlaps any lock
+   * in this table, whichever Transaction holds it.
+   *
+   * @param lock the lock to check
+   * @return true if the byte-range of the lock is partly or fully held
+   */
+  protected boolean overlaps(XALock lock) {
+    return !overlapping(lock.getStartPosition(), lock.getEndPosition()).isEmpty();
+  }
+
+  /**
+   * Adds the Transaction of the given <code>lock</code> to the holders of its
+   * byte-range, upgrading the mode of the bytes it already holds in
+   * <code>READ</code> mode if the lock is in <code>WRITE</code> mode. The
+   * caller must have checked that the lock does not conflict with the locks
+   * of other Transactions.
+   *
+   * @param lock the lock to add
+   * @return true if the table has changed; false if the Transaction already
+   *         held the bytes in the requested mode
+   */
+  protected boolean grant(XALock lock) {
+    long sp = lock.getStartPosition();
+    long ep = lock.getEndPosition();
+    if (lock.getLockLength() <= 0 || isCovered(lock))
+      return false;
+
+    split(sp);
+    split(ep);
+    long cursor = sp;
+    for (Range range : new ArrayList<Range>(ranges.subMap(sp, true, ep, false).values())) {
+      if (range.start > cursor)  // a gap, not held by anybody
+        put(new Range(cursor, range.start, lock));
+      put(range.with(lock));
+      cursor = range.end;
+    }
+    if (cursor < ep)
+      put(new Range(cursor, ep, lock));
+    coalesce(sp, ep);
+    return true;
+  }
+
+  /**
+   * Removes the Transaction with the given <code>xid</code> from the holders
+   * of all the ranges; the ranges left without holders are removed.
+   *
+   * @param xid the global Transaction id of the locks to remove
+   * @return true if any lock has been removed
+   */
+  protected boolean release(Xid xid) {
+    TreeSet<Long> starts = owned.get(new XidKey(xid));
+    if (starts == null)
+      return false;
+    List<Range> changed = new ArrayList<Range>();
+    for (Long start : new ArrayList<Long>(starts)) {
+      Range rest = ranges.get(start).without(xid);
+      if (rest == null) {
+        remove(start);
+      } else {
+        put(rest);
+        changed.add(rest);
+      }
+    }
+    for (Range rest : changed) {
+      coalesce(rest.start, rest.end);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the locks of this table held by the Transaction with the given
+   * <code>xid</code>, or all of them if <code>xid</code> is <code>null</code>.
+   * The bytes a Transaction holds in the same mode in consecutive ranges are
+   * returned as a single lock, so the locks of different Transactions may
+   * overlap but the locks of a Transaction never do.
+   *
+   * @param xid the global Transaction id of the locks, or <code>null</code>
+   * @return the locks, sorted by their start position
+   */
+  protected List<XALock> getLocks(Xid xid) {
+    List<XALock> held = new ArrayList<XALock>();
+    if (xid != null) {
+      TreeSet<Long> starts = owned.get(new XidKey(xid));
+      if (starts == null)
+        return held;
+      for (Long start : starts) {
+        Range range = ranges.get(start);
+        XALock holder = range.holderOf(xid);
+        XALock last = held.isEmpty() ? null : held.get(held.size() - 1);
+        if (last != null && last.getEndPosition() == range.start &&
+            last.getMode() == holder.getMode()) {
+          held.set(held.size() - 1, new XALock(last.getXid(), last.getMode(),
+              last.getStartPosition(), range.end - last.getStartPosition()));
+        } else {
+          held.add(holder);
+        }
+      }
+      return held;
+    }
+
+    List<XALock> open = new ArrayList<XALock>();
+    for (Range range : ranges.values()) {
+      List<XALock> next = new ArrayList<XALock>();
+      for (XALock holder : range.holders) {
+        XALock piece = holder;
+        for (XALock prev : open) {
+          if (prev.isHeldBy(holder.getXid())) {
+            if (prev.getEndPosition() == range.start && prev.getMode() == holder.getMode()) {
+              piece = new XALock(prev.getXid(), prev.getMode(), prev.getStartPosition(),
+                                 range.end - prev.getStartPosition());
+              open.remove(prev);
+            }
+            break;
+          }
+        }
+        next.add(piece);
+      }
+      held.addAll(open);
+      open = next;
+    }
+    held.addAll(open);
+    Collections.sort(held, BY_START);
+    return held;
+  }
+
+  /**
+   * Returns the number of ranges of this table held by the Transaction
+   * with the given <code>xid</code>.
+   *
+   * @param xid the global Transaction id
+   * @return the number of ranges the Transaction holds
+   */
+  protected int size(Xid xid) {
+    TreeSet<Long> starts = owned.get(new XidKey(xid));
+    return starts == null ? 0 : starts.size();
+  }
+
+  /**
+   * Returns the number of disjoint ranges in this table.
+   * @return the number of ranges
+   */
+  protected int size() {
+    return ranges.size();
+  }
+
+  /**
+   * Returns true if no lock is held.
+   * @return true if this table is empty; false otherwise
+   */
+  protected boolean isEmpty() {
+    return ranges.isEmpty();
+  }
+
+  /**
+   * Returns true if the Transaction of the given <code>lock</code> already
+   * holds all of its bytes in its mode, or in <code>WRITE</code> mode.
+   */
+  private boolean isCovered(XALock lock) {
+    long cursor = lock.getStartPosition();
+    for (Range range : overlapping(lock.getStartPosition(), lock.getEndPosition())) {
+      XALock holder = range.holderOf(lock.getXid());
+      if (range.start > cursor || holder == null ||
+          (lock.getMode() == LockMode.WRITE && holder.getMode() != LockMode.WRITE))
+        return false;
+      cursor = range.end;
+    }
+    return cursor >= lock.getEndPosition();
+  }
+
+  /**
+   * Splits the range containing the given position, if any, into two ranges
+   * with the same holders meeting at <code>position</code>.
+   */
+  private void split(long position) {
+    Map.Entry<Long, Range> floor = ranges.floorEntry(position);
+    if (floor == null)
+      return;
+    Range range = floor.getValue();
+    if (range.start < position && range.end > position) {
+      put(range.sub(range.start, position));
+      put(range.sub(position, range.end));
+    }
+  }
+
+  /**
+   * Joins the neighbouring ranges with the same holders, from the range
+   * before <code>sp</code> to the range starting at <code>ep</code>.
+   */
+  private void coalesce(long sp, long ep) {
+    Map.Entry<Long, Range> lower = ranges.lowerEntry(sp);
+    long from = (lower == null) ? sp : lower.getKey();
+    Range prev = null;
+    for (Range range : new ArrayList<Range>(ranges.subMap(from, true, ep, true).values())) {
+      if (prev != null && prev.end == range.start && prev.sameHolders(range)) {
+        remove(range.start);
+        prev = prev.sub(prev.start, range.end);
+        put(prev);
+      } else {
+        prev = range;
+      }
+    }
+  }
+
+  /**
+   * Puts the range in the table, replacing the one with the same start
+   * position, and keeps the index of the holders up to date.
+   */
+  private void put(Range range) {
+    remove(range.start);
+    ranges.put(range.start, range);
+    for (XALock holder : range.holders) {
+      XidKey key = new XidKey(holder.getXid());
+      TreeSet<Long> starts = owned.get(key);
+      if (starts == null)
+        owned.put(key, starts = new TreeSet<Long>());
+      starts.add(range.start);
+    }
+  }
+
+  private void remove(long start) {
+    Range range = ranges.remove(start);
+    if (range == null)
+      return;
+    for (XALock holder : range.holders) {
+      XidKey key = new XidKey(holder.getXid());
+      TreeSet<Long> starts = owned.get(key);
+      starts.remove(start);
+      if (starts.isEmpty())
+        owned.remove(key);
+    }
+  }
+
+  /**
+   * Returns the ranges which overlap the byte-range <code>[sp, ep)</code>,
+   * sorted by their start position. As the ranges in the table are disjoint
+   * only the range starting at or before <code>sp</code> and the ranges
+   * starting inside the byte-range need to be looked at.
+   *
+   * @param sp the start position of the byte-range
+   * @param ep the end position of the byte-range
+   * @return the overlapping ranges in ascending order
+   */
+  private List<Range> overlapping(long sp, long ep) {
+    List<Range> found = new ArrayList<Range>();
+    Map.Entry<Long, Range> floor = ranges.floorEntry(sp);
+    if (floor != null && floor.getValue().end > sp)
+      found.add(floor.getValue());
+    for (Range range : ranges.subMap(sp, false, ep, false).values()) {
+      found.add(range);
+    }
+    return found;
+  }
+
+  private static final Comparator<XALock> BY_START = new Comparator<XALock>() {
+    public int compare(XALock l1, XALock l2) {
+      long s1 = l1.getStartPosition();
+      long s2 = l2.getStartPosition();
+      return (s1 < s2) ? -1 : ((s1 == s2) ? 0 : 1);
+    }
+  };
+
+  /**
+   * The content of an <code>Xid</code>, to index the Transactions whatever
+   * the implementation of their ids.
+   */
+  private static class XidKey
+  {
+    private final int formatId;
+    private final byte[] gtrid;
+    private final byte[] bqual;
+
+    private XidKey(Xid xid) {
+      formatId = xid.getFormatId();
+      gtrid = xid.getGlobalTransactionId();
+      bqual = xid.getBranchQualifier();
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof XidKey))
+        return false;
+      XidKey key = (XidKey) obj;
+      return formatId == key.formatId && Arrays.equals(gtrid, key.gtrid) &&
+             Arrays.equals(bqual, key.bqual);
+    }
+
+    public int hashCode() {
+      return formatId ^ Arrays.hashCode(gtrid) ^ Arrays.hashCode(bqual);
+    }
+  }
+
+  /**
+   * A byte-range <code>[start, end)</code> and its holders, one lock per
+   * Transaction covering exactly the range. Ranges are not changed once
+   * in the table; they are replaced.
+   */
+  private static class Range
+  {
+    private final long start;
+    private final long end;
+    private final List<XALock> holders;
+
+    private Range(long start, long end, List<XALock> holders) {
+      this.start = start;
+      this.end = end;
+      this.holders = holders;
+    }
+
+    private Range(long start, long end, XALock lock) {
+      this(start, end, new ArrayList<XALock>(1));
+      holders.add(new XALock(lock.getXid(), lock.getMode(), start, end - start));
+    }
+
+    /**
+     * Returns the part <code>[s, e)</code> of this range with the same holders.
+     */
+    private Range sub(long s, long e) {
+      List<XALock> resized = new ArrayList<XALock>(holders.size());
+      for (XALock holder : holders)
+        resized.add(new XALock(holder.getXid(), holder.getMode(), s, e - s));
+      return new Range(s, e, resized);
+    }
+
+    /**
+     * Returns this range with the Transaction of <code>lock</code> among
+     * its holders, in the stronger of its current mode and the lock's.
+     */
+    private Range with(XALock lock) {
+      List<XALock> added = new ArrayList<XALock>(holders.size() + 1);
+      int mode = lock.getMode();
+      for (XALock holder : holders) {
+        if (holder.isHeldBy(lock.getXid())) {
+          if (holder.getMode() == LockMode.WRITE)
+            mode = LockMode.WRITE;
+        } else {
+          added.add(holder);
+        }
+      }
+      added.add(new XALock(lock.getXid(), mode, start, end - start));
+      return new Range(start, end, added);
+    }
+
+    /**
+     * Returns this range without the Transaction with the given
+     * <code>xid</code>, or <code>null</code> if no holder is left.
+     */
+    private Range without(Xid xid) {
+      List<XALock> rest = new ArrayList<XALock>(holders.size());
+      for (XALock holder : holders) {
+        if (!holder.isHeldBy(xid))
+          rest.add(holder);
+      }
+      return rest.isEmpty() ? null : new Range(start, end, rest);
+    }
+
+    private XALock holderOf(Xid xid) {
+      for (XALock holder : holders) {
+        if (holder.isHeldBy(xid))
+          return holder;
+      }
+      return null;
+    }
+
+    private boolean sameHolders(Range other) {
+      if (holders.size() != other.holders.size())
+        return false;
+      for (XALock holder : holders) {
+        XALock same = other.holderOf(holder.getXid());
+        if (same == null || same.getMode() != holder.getMode())
+          return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.locking;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class keeps the byte-range locks the process holds on the sidecar
+ * <em>lock file</em> of a Transactional file, through which the processes
+ * working on the same file exclude each other.
+ * <p>
+ * The operating system locks a range for a whole process and refuses
+ * overlapping locks taken by the same process, so the locks of all the
+ * Transactions of the process are kept as one set of disjoint
+ * {@link FileLock}s: a range is locked by taking only the parts of it the
+ * process does not hold yet, in shared mode for reading and in exclusive mode
+ * for writing. A shared lock covering bytes to be written is upgraded by
+ * releasing it and locking its range again in exclusive mode. A lock is
+ * released once none of the Transactions of the process holds any of its
+ * bytes, so a range may stay locked a little longer than needed.
+ *
+ * @see XALockManager
+ */
+public class ProcessLocks
+{
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private TreeMap<Long, FileLock> held;
+
+  /**
+   * Constructor to open, or create, the sidecar <em>lock file</em> with the
+   * given <code>filename</code>.
+   *
+   * @param filename the name of the lock file
+   * @exception IOException if an I/O error occurs
+   */
+  protected ProcessLocks(String filename) throws IOException {
+    raf = new RandomAccessFile(filename, "rw");
+    channel = raf.getChannel();
+    held = new TreeMap<Long, FileLock>();
+  }
+
+  /**
+   * Locks the given range in the lock file without waiting. The parts of
+   * the range not locked by the process yet are locked in the requested
+   * mode and, for an exclusive lock, the shared locks overlapping the range
+   * are upgraded.
+   * <p>
+   * If another process holds a conflicting lock, the locks taken by the
+   * call are released and false is returned. A shared lock which failed to
+   * be upgraded is locked again in shared mode; should this fail too, its
+   * bytes are no longer held by the process.
+   *
+   * @param position the position of the first byte to lock
+   * @param length the number of bytes to lock
+   * @param shared true to lock in shared mode; false in exclusive mode
+   * @return true if the process holds the whole range in the requested mode
+   * @exception IOException if an I/O error occurs
+   */
+  protected synchronized boolean acquire(long position, long length, boolean shared)
+      throws IOException {
+    long end = position + length;
+    List<FileLock> taken = new ArrayList<FileLock>();
+    List<FileLock> upgrades = new ArrayList<FileLock>();
+    long next = position;
+    for (FileLock fl : overlapping(position, end)) {
+      if (fl.position() > next && !tryLock(next, fl.position() - next, shared, taken))
+        return false;
+      if (!shared && fl.isShared())
+        upgrades.add(fl);
+      next = Math.max(next, fl.position() + fl.size());
+    }
+    if (next < end && !tryLock(next, end - next, shared, taken))
+      return false;
+
+    for (FileLock fl : upgrades) {
+      long p = fl.position();
+      long size = fl.size();
+      fl.release();
+      held.remove(p);
+      FileLock upgraded = channel.tryLock(p, size, false);
+      if (upgraded == null) {
+        FileLock back = channel.tryLock(p, size, true);
+        if (back != null)
+          held.put(p, back);
+        release(taken);
+        return false;
+      }
+      held.put(p, upgraded);
+    }
+    for (FileLock fl : taken)
+      held.put(fl.position(), fl);
+    return true;
+  }
+
+  /**
+   * Returns the locks held by the process overlapping the given range.
+   *
+   * @param position the position of the first byte of the range
+   * @param length the number of bytes of the range
+   * @return the overlapping locks in ascending order
+   */
+  protected synchronized List<FileLock> getLocks(long position, long length) {
+    return overlapping(position, position + length);
+  }
+
+  /**
+   * Releases the given lock held by the process.
+   *
+   * @param fl the lock to release
+   * @exception IOException if an I/O error occurs
+   */
+  protected synchronized void release(FileLock fl) throws IOException {
+    if (held.get(fl.position()) == fl) {
+      held.remove(fl.position());
+      fl.release();
+    }
+  }
+
+  /**
+   * Releases all the locks of the process and closes the lock file. The
+   * file itself is kept, as other processes may still be using it.
+   */
+  protected synchronized void close() {
+    try {
+      release(new ArrayList<FileLock>(held.values()));
+      held.clear();
+      raf.close();
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+  }
+
+  /**
+   * Locks a range in the lock file without waiting, adding the lock to
+   * <code>taken</code>. If the range is refused, all the locks in
+   * <code>taken</code> are released and false is returned.
+   */
+  private boolean tryLock(long position, long length, boolean shared,
+                          List<FileLock> taken) throws IOException {
+    FileLock fl = channel.tryLock(position, length, shared);
+    if (fl == null) {
+      release(taken);
+      return false;
+    }
+    taken.add(fl);
+    return true;
+  }
+
+  private void release(List<FileLock> locks) throws IOException {
+    for (FileLock fl : locks)
+      fl.release();
+  }
+
+  /**
+   * Returns the held locks overlapping the range [sp, ep), in O(log n + k).
+   */
+  private List<FileLock> overlapping(long sp, long ep) {
+    List<FileLock> result = new ArrayList<FileLock>();
+    Map.Entry<Long, FileLock> floor = held.floorEntry(sp);
+    if (floor != null && floor.getKey() < sp &&
+        floor.getValue().position() + floor.getValue().size() > sp)
+      result.add(floor.getValue());
+    result.addAll(held.subMap(sp, ep).values());
+    return result;
+  }
+}
@@ -0,0 +1,81 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.locking;
+
+import javax.transaction.xa.Xid;
+import java.util.List;
+
+/**
+ * Chooses which Transaction of a deadlock is aborted by an
+ * {@link XALockManager}. The victim fails its lock request with a
+ * {@link org.jboss.jbossts.fileio.xalib.txfiles.exceptions.DeadlockException},
+ * which releases the other Transactions of the cycle once it is rolled back.
+ */
+public interface VictimPolicy
+{
+  /**
+   * Chooses the Transaction which started last, losing the least time
+   * when rolled back.
+   */
+  VictimPolicy YOUNGEST = new VictimPolicy() {
+    public Xid chooseVictim(List<Xid> cycle, XALockManager lockManager) {
+      Xid victim = null;
+      for (Xid xid : cycle) {
+        if (victim == null ||
+            lockManager.getStartTime(xid) > lockManager.getStartTime(victim))
+          victim = xid;
+      }
+      return victim;
+    }
+  };
+
+  /**
+   * Chooses the Transaction which has been granted the fewest locks, the
+   * youngest one if there are more than one.
+   */
+  VictimPolicy LEAST_WORK = new VictimPolicy() {
+    public Xid chooseVictim(List<Xid> cycle, XALockManager lockManager) {
+      Xid victim = null;
+      for (Xid xid : cycle) {
+        if (victim == null) {
+          victim = xid;
+          continue;
+        }
+        long work = lockManager.getLockCount(xid);
+        long least = lockManager.getLockCount(victim);
+        if (work < least || (work == least &&
+            lockManager.getStartTime(xid) > lockManager.getStartTime(victim)))
+          victim = xid;
+      }
+      return victim;
+    }
+  };
+
+  /**
+   * Returns the Transaction to abort in order to break a deadlock.
+   *
+   * @param cycle the Transactions of the deadlock, each waiting for the
+   *              next one and the last one for the first
+   * @param lockManager the lock manager, which keeps the start time and
+   *                    the number of locks of every Transaction
+   * @return one of the Transactions of the <code>cycle</code>
+   */
+  Xid chooseVictim(List<Xid> cycle, XALockManager lockManager);
+}
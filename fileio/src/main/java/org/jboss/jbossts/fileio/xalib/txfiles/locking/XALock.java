@@ -22,20 +22,19 @@ package org.jboss.jbossts.fileio.xalib.txfiles.locking;
 import com.arjuna.ats.txoj.LockMode;
 import javax.transaction.xa.Xid;
 import java.io.Serializable;
-import java.util.Hashtable;
-
-import org.jboss.jbossts.fileio.xalib.Globals;
 
 /**
  * Instances of this class allow accessing the information held by each lock.
  * The <em>byte-range</em> to lock, the <code>mode</code> as well as the
  * <code>xid</code> are the ones that define a lock.
  * <p>
- * Each lock object has a separate mode for each byte in its byte-range. When
- * initialised all of these bytes have the mode passed in the constructor during
- * initialisation. Computations by the <code>adjustWith</code> method determine
- * which of the bytes within the byte-range needs to change mode. This will allow
- * more concurrent operations acting on the same lock.
+ * A lock covers the contiguous range of bytes
+ * <code>[startPosition, startPosition + lockLength)</code> in a single mode, so
+ * its size does not depend on the number of bytes it locks. Locks of different
+ * Transactions may overlap as long as they are all in <code>READ</code> mode.
+ * When a Transaction locks a range that overlaps or touches its own locks, the
+ * {@link XALockManager} splits them where the mode changes and merges the
+ * neighbouring ones which end up in the same mode.
  * <p>
  * The class implements {@link java.io.Serializable} as the objects need to be
  * stored in a file by the {@link XALockManager}. It also implements the
@@ -48,9 +47,9 @@ import org.jboss.jbossts.fileio.xalib.Globals;
 public class XALock implements Serializable, Comparable<XALock>
 {
   private Xid xid;
+  private int mode;
   private long startPosition;
   private long lockLength;
-  private Hashtable<Long, Integer> byteModes;
 
   /**
    * Constructor to create <code>XALock</code> objects. These objects are
@@ -58,30 +57,15 @@ public class XALock implements Serializable, Comparable<XALock>
    *
    * @param xid the global Transaction id which was used when the lock was acquired
    * @param mode the mode (<code>LockMode.READ</code or <code>LockMode.WRITE) in which
-   *             the bytes in the byte-range will be initialised
+   *             the bytes in the byte-range are locked
    * @param startPosition the position in the file of the first byte in the byte-range
    * @param lockLength the number of bytes to lock
    */
   public XALock(Xid xid, int mode, long startPosition, long lockLength) {
     this.xid = xid;
+    this.mode = mode;
     this.startPosition = startPosition;
     this.lockLength = lockLength;
-
-    initModes(mode);
-  }
-
-  /**
-   * The method is used to initialise all the bytes in the byte range to the
-   * given <code>mode</code>.
-   *
-   * @param mode the mode in which the bytes will be initialised
-   */
-  private void initModes(int mode) {
-    byteModes = new Hashtable<Long, Integer>(89);
-    long sp = startPosition;
-    while (sp < getEndPosition()) {
-      byteModes.put(sp++, mode);
-    }
   }
 
   /**
@@ -95,27 +79,12 @@ public class XALock implements Serializable, Comparable<XALock>
   }
 
   /**
-   * This method sets a <code>newMode</code> at <code>position</code>
+   * Returns the mode in which the bytes of this lock are locked.
    *
-   * @param position the position at which the new mode will be set
-   * @param newMode the new mode to set to the byte at <code>position</code>
+   * @return <code>LockMode.READ</code> or <code>LockMode.WRITE</code>
    */
-  private void setModeAt(long position, int newMode) {
-    byteModes.put(position, newMode);
-  }
-
-  /**
-   * This method sets a <code>newMode</code> to a byte-range.
-   *
-   * @param position the position of the first byte in the byte range
-   * @param len the number of bytes that will change mode
-   * @param newMode the new mode to set to a range of bytes
-   */
-  private void setModeStartingAt(long position, long len, int newMode) {
-    long ps = position;
-    while (ps < len+position) {
-      setModeAt(ps++, newMode);
-    }
+  protected int getMode() {
+    return mode;
   }
 
   /**
@@ -123,23 +92,10 @@ public class XALock implements Serializable, Comparable<XALock>
    *
    * @return the start position of this lock
    */
-  private long getStartPosition() {
+  protected long getStartPosition() {
     return startPosition;
   }
 
-  /**
-   * This method sets a new start position of this lock. The
-   * method is especially useful when the bounds of the lock
-   * have to be moved.
-   *
-   * @param startPosition the new start position of this lock
-   */
-  private void setStartPosition(long startPosition) {
-    long len_difference = this.startPosition - startPosition;
-    lockLength += len_difference;
-    this.startPosition = startPosition;
-  }
-
   /**
    * Returns the length of the locked (by this lock) region in the
    * Transactional file.
@@ -147,198 +103,57 @@ public class XALock implements Serializable, Comparable<XALock>
    * @return a <code>long</code> which specifies how many bytes have
    *         been locked by this lock
    */
-  private long getLockLength() {
+  protected long getLockLength() {
     return lockLength;
   }
 
-  /**
-   * This method modifies the amount of bytes locked by this lock
-   *
-   * @param lockLength how many bytes to lock
-   */
-  private void setLockLength(long lockLength) {
-    this.lockLength = lockLength;
-  }
-
   /**
    * Returns the end position in the file of this lock.
    *
    * @return a <code>long</code> which represents the end
    *         of this lock within the Transactional file
    */
-  private long getEndPosition() {
-    return getStartPosition() + getLockLength();
+  protected long getEndPosition() {
+    return startPosition + lockLength;
   }
 
   /**
-   * This method returns true if the <code>mode</code> is contained
-   * in the byte-range of this lock; otherwise returns false.
+   * Returns true if this lock was acquired by the Transaction with
+   * the given <code>xid</code>.
    *
-   * @param mode the mode to check if exists
-   * @return true if the <code>mode</code> exists in the byte-range;
-   *         false otherwise
+   * @param xid the global Transaction id to compare with
+   * @return true if the lock belongs to that Transaction; false otherwise
    */
-  private boolean containsMode(int mode) {
-    return byteModes.containsValue(mode);
+  protected boolean isHeldBy(Xid xid) {
+    return this.xid == xid ||
+           (this.xid != null && xid != null && (this.xid.equals(xid) || xid.equals(this.xid)));
   }
 
   /**
-   * This method checks if the <code>mode</code> is contained within a
-   * specified range (sub-range) in the byte-range of this lock.
+   * Returns true if this lock and the <code>newLock</code> lock at least
+   * one common byte.
    *
-   * @param sp the start position of the sub-range to search
-   * @param ep the end position of the sub-range
-   * @param mode the mode to search if exists
-   * @return true if the mode exists within the given sub-range
+   * @param newLock the lock trying to add
+   * @return true if the byte-ranges of the two locks overlap
    */
-  private boolean containsModeBetween(long sp, long ep, int mode) {
-    for (long p=sp; p<ep; p++) {
-      if (byteModes.get(sp) == mode)
-        return true;
-    }
-    return false;
+  protected boolean overlaps(XALock newLock) {
+    return startPosition < newLock.getEndPosition() &&
+           newLock.getStartPosition() < getEndPosition();
   }
 
   /**
-   * This method returns true if the <code>newLock</code> conflicts with this
-   * lock; false otherwise.
+   * Returns true if the <code>newLock</code> can not be granted while this
+   * lock is held. Locks of the same Transaction never conflict, nor do
+   * <code>READ</code> locks; the byte-ranges of the locks of different
+   * Transactions may only overlap if both are in <code>READ</code> mode.
    *
    * @param newLock the lock trying to add
    * @return true if there is a conflict between <code>this</code> lock and the
    *         <code>newLock</code>; false otherwise
    */
-  private boolean conflictsWith(XALock newLock) {
-    return newLock == null                   || this.wraps(newLock)                ||
-           this.isWrappedBy(newLock)         || this.equals(newLock)               ||
-           this.intersectedFromLeft(newLock) || this.intersectedFromRight(newLock);
-  }
-
-  /**
-   * This method performs some calculations to return a result whether
-   * a conflict exists or not. If the conflict exists then it tries to
-   * check the byte-range to see if the lock can be granted or not. If
-   * needed the method will modify the bounds of existing locks so the
-   * new one can fit next to it.
-   *
-   * @param neighLock the lock located next to this lock
-   * @return <code>Globals.UPDATE_OLD_LOCK</code>, <code>Globals.ADD_NEW_LOCK</code>
-   *         <code>Globals.MOVE_LOCK_BOUNDS</code>, <code>Globals.REFUSE_LOCK</code>,
-   *         <code>Globals.NO_MOD_LOCK</code>, depending on the outcome of computations 
-   */
-  protected int adjustWith(XALock neighLock) {
-    final int R_M = LockMode.READ;
-    final int W_M = LockMode.WRITE;
-    int result = Globals.REFUSE_LOCK;
-
-    if (neighLock != null && neighLock.conflictsWith(this)) {
-      if (neighLock.getXid() == this.getXid()) {
-        if (this.equals(neighLock) || neighLock.wraps(this)) {
-          if (!this.containsMode(W_M))
-            result = Globals.NO_MOD_LOCK;
-          if (!this.containsMode(R_M)) {
-            neighLock.setModeStartingAt(this.getStartPosition(), this.getLockLength(), W_M);
-            result = Globals.UPDATE_OLD_LOCK;
-          }
-        } else if (neighLock.intersectedFromLeft(this)) {
-          long neighSP = neighLock.getStartPosition();
-          long conflict_length = this.getEndPosition() - neighSP;
-          if (!this.containsMode(R_M)) // the new Lock is in W_M
-            neighLock.setModeStartingAt(neighSP, conflict_length, W_M);
-          this.setLockLength(this.getLockLength() - conflict_length);
-          result = Globals.MOVE_LOCK_BOUNDS;
-        } else if (neighLock.intersectedFromRight(this)) {
-          long neighEP = neighLock.getEndPosition();
-          long conflict_length = neighEP - this.getStartPosition();
-          if (!this.containsMode(R_M)) // the new lock is in W_M
-            neighLock.setModeStartingAt(this.getStartPosition(), conflict_length, W_M);
-          this.setStartPosition(neighEP); // lock length will be calculated by this method
-          result = Globals.MOVE_LOCK_BOUNDS;
-        } else if (neighLock.isWrappedBy(this)) {
-          if (!this.containsMode(R_M)) {
-            neighLock.setStartPosition(this.getStartPosition());
-            neighLock.setLockLength(this.getLockLength());
-            neighLock.initModes(W_M);
-            result = Globals.UPDATE_OLD_LOCK;
-          }
-        }
-      } else { //different Transaction
-        if (this.containsMode(W_M) || neighLock.containsMode(W_M)) {
-          result = Globals.REFUSE_LOCK;
-        } else if (neighLock.intersectedFromLeft(this)) {
-          if (!this.containsMode(W_M)) {
-            if (neighLock.containsModeBetween(neighLock.getStartPosition(), this.getEndPosition(), R_M))
-              result = Globals.NO_MOD_LOCK;
-            else
-              result = Globals.REFUSE_LOCK;
-          }
-        } else if (neighLock.intersectedFromRight(this)) {
-          if (!this.containsMode(W_M)) {
-            if (neighLock.containsModeBetween(this.getStartPosition(), neighLock.getEndPosition(), R_M))
-              result = Globals.NO_MOD_LOCK;
-            else
-              result = Globals.REFUSE_LOCK;
-          }
-        }
-      }
-    } else {
-      return Globals.ADD_NEW_LOCK;
-    }
-    return result;
-  }
-
-  /**
-   * The method returns true if an existing lock surrounds the new lock;
-   * false otherwise.
-   *
-   * @param newLock the lock trying to add
-   * @return true if the existing lock surrounds the new lock; false othewise
-   */
-  private boolean wraps(XALock newLock) {
-    return (this.getStartPosition() <= newLock.getStartPosition() &&
-            this.getEndPosition() > newLock.getEndPosition()) ||
-           (this.getStartPosition() < newLock.getStartPosition() &&
-            this.getEndPosition() >= newLock.getEndPosition());
-  }
-
-  /**
-   * The method returns true if the existing lock is surrounded by the
-   * new lock; false otherwise.
-   *
-   * @param newLock the lock trying to add
-   * @return true if the existing lock is surrounded by the new lock;
-   *         false otherwise
-   */
-  private boolean isWrappedBy(XALock newLock) {
-    return (this.getStartPosition() >= newLock.getStartPosition() &&
-            this.getEndPosition() < newLock.getEndPosition()) ||
-           (this.getStartPosition() > newLock.getStartPosition() &&
-            this.getEndPosition() <= newLock.getEndPosition());
-  }
-
-  /**
-   * Returns true if the existing lock conflicts from the left hand side
-   * with the new lock; false otherwise.
-   *
-   * @param newLock the lock trying to add
-   * @return true if the existing lock conflicts from the left hand side
-   *         with the new lock; false otherwise
-   */
-  private boolean intersectedFromLeft(XALock newLock) {
-    return newLock.getStartPosition() < this.getStartPosition() &&
-           newLock.getEndPosition() <= this.getEndPosition();
-  }
-
-  /**
-   * Returns true if the existing lock conflicts from the right hand side
-   * with the new lock; false otherwise.
-   *
-   * @param newLock the lock trying to add
-   * @return true if the existing lock conflicts from the right hand side
-   *         with the new lock; false otherwise
-   */
-  private boolean intersectedFromRight(XALock newLock) {
-    return newLock.getStartPosition() >= this.getStartPosition() &&
-           newLock.getEndPosition() > this.getEndPosition();
+  protected boolean conflictsWith(XALock newLock) {
+    return !isHeldBy(newLock.getXid()) && overlaps(newLock) &&
+           (mode == LockMode.WRITE || newLock.getMode() == LockMode.WRITE);
   }
 
   /**
@@ -365,16 +180,12 @@ public class XALock implements Serializable, Comparable<XALock>
   }
 
   /**
-   * This method checks the equality of two locks. It will return
-   * true if both of the locks start at the same point in the
-   * Transactional file and they have the same length; false
-   * otherwise.
-   * 
-   * @param newLock the lock trying to add
-   * @return true if the locks are equal; false otherwise
+   * Returns a readable description of this lock, used in messages.
+   *
+   * @return the mode and the byte-range of this lock
    */
-  private boolean equals(XALock newLock) {
-    return (this.compareTo(newLock) == 0 &&
-        getLockLength() == newLock.getLockLength());
+  public String toString() {
+    return (mode == LockMode.WRITE ? "WRITE" : "READ") + "[" + startPosition +
+        ", " + getEndPosition() + ")";
   }
 }
@@ -19,31 +19,79 @@
  */
 package org.jboss.jbossts.fileio.xalib.txfiles.locking;
 
+import com.arjuna.ats.txoj.LockMode;
 import com.arjuna.ats.txoj.LockResult;
 import javax.transaction.xa.Xid;
 import java.io.*;
+import java.nio.channels.FileLock;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.jboss.jbossts.fileio.ObjectOutputStreamAppend;
 import org.jboss.jbossts.fileio.xalib.Globals;
+import org.jboss.jbossts.fileio.xalib.txfiles.exceptions.DeadlockException;
 
 /**
  * This class is used to manage Locking on a {@link org.jboss.jbossts.fileio.xalib.txfiles.file.XAFile}. When methods
  * like read/write are invoked from within the <code>XAFile</code> class
  * locks are acquired automatically in read or write modes, respectively.
  * <p>
- * The class uses a list to maintain all the locks held by the VM. If
- * multiple VMs act on the same Transactional file simultaneously the
- * locks are kept in a file, so every VM is aware of which regions of the
- * file are locked. Processing a different <code>XAFile</code> will
- * produce another <em>lock file</em> containing the locked regions of
- * that Transactional file.
+ * The class keeps all the locks held by the VM in {@link LockTable}s of
+ * disjoint byte-ranges, where a lock is checked against the locks it overlaps
+ * only. The offset space of the file is divided into segments of
+ * <code>Globals.LOCK_SEGMENT_SIZE</code> bytes, which are spread over
+ * <code>Globals.LOCK_STRIPES</code> stripes, each with its own lock table and
+ * monitor, so locks on unrelated regions of the file are acquired concurrently.
+ * A lock spanning several segments is kept, whole, in the table of every
+ * stripe it touches; the monitors of these stripes are always taken in
+ * ascending order, so such a lock is acquired atomically and without deadlock.
  * <p>
- * When a lock is acquired through the <code>tryLock</code> method, depending
- * on the outcome of the <code>manageLocks</code> a lock will either be
- * <em>GRANTED</em> or <em>REFUSED</em>. Internally, computations happen to
- * either add a new lock, update an existing one (by moving its bounds or
- * changing its access mode), or do nothing at all.
+ * The locks are also kept in a file, so they survive the VM and the locks of
+ * a Transaction can be recovered. The file is a {@link LockJournal} to which
+ * every change of the tables is appended as a small binary record; only one
+ * VM may write the journal of a file at a time. Processing a different
+ * <code>XAFile</code> will produce another <em>lock file</em> containing the
+ * locked regions of that Transactional file.
+ * <p>
+ * If multiple VMs act on the same Transactional file simultaneously they
+ * must use the <em>inter-process</em> mode, where the processes exclude each
+ * other through operating system locks on a sidecar lock file, kept by
+ * {@link ProcessLocks}, and the journal is not used. A lock is checked
+ * against the lock tables first, so the lock file is only locked once no other
+ * Transaction of the process is in the way; while another process holds the
+ * range, a waiting lock polls the lock file every
+ * <code>Globals.LOCK_POLL_INTERVAL</code> milliseconds.
+ * <p>
+ * When a lock is acquired through the <code>tryLock</code> method, it will
+ * either be <em>GRANTED</em> or <em>REFUSED</em>. A lock is refused if it
+ * overlaps a lock of another Transaction, or a lock another Transaction is
+ * already waiting for, unless both are in <code>READ</code> mode: any number
+ * of Transactions may read the same bytes, and the only reader of a range may
+ * upgrade its lock to <code>WRITE</code> mode without releasing it. The <code>lock</code> method instead waits, up to a
+ * timeout, for the conflicting locks to be released: waiters are queued on the
+ * stripes of their range and granted in the order they arrived, and are woken
+ * up by <code>releaseLocks</code>. The time a Transaction may spend waiting
+ * can also be limited over all its calls (see
+ * <code>setTransactionTimeout</code>). A granted lock is merged with the locks
+ * of the same Transaction it overlaps or touches: ranges are split where the
+ * mode changes (a <code>WRITE</code> lock upgrades the <code>READ</code> locks
+ * it covers) and neighbouring ranges in the same mode are joined.
+ * <p>
+ * The Transactions waiting for locks form a wait-for graph, each waiting for
+ * the Transactions holding or queued ahead on the bytes it asked for. The
+ * graph is checked for a cycle every time a Transaction has to wait; the
+ * {@link VictimPolicy} then chooses the Transaction of the cycle to abort with
+ * a {@link DeadlockException}, so the others do not wait until their timeout.
+ * <p>
+ * A Transaction which holds many ranges, or locks covering a large part of
+ * the file, is escalated: its locks are replaced by a single lock on the
+ * whole file, so the tables stay small however many ranges it touches. The
+ * ranges are counted in the tables, so locks which only extend a range the
+ * Transaction already holds do not bring it closer to escalation. Escalation
+ * is off by default. It does not wait; if another Transaction holds or waits
+ * for a lock on the file it is tried again once the Transaction has doubled
+ * its ranges.
  *
  * @author Ioannis Ganotis
  * @version Jul 23, 2008
@@ -51,7 +99,20 @@ import org.jboss.jbossts.fileio.xalib.Globals;
 public class XALockManager implements Serializable
 {
   private String filename = Globals.LOCKS_FOLDER_PATH;
-  transient private LinkedList<XALock> heldLocks;
+  private String lockFilename = Globals.LOCKS_FOLDER_PATH;
+  private String xaFilename;
+  transient private Stripe[] stripes;
+  transient private int[] allStripes;
+  transient private volatile LockJournal journal;
+  transient private ProcessLocks processLocks;
+  transient private ConcurrentMap<Xid, TxStats> transactions;
+  transient private Map<Xid, Waiter> waiting;
+  transient private VictimPolicy victimPolicy;
+  transient private long deadlocks;
+  transient private volatile long escalations;
+  private long transactionTimeout = Globals.LOCK_TRANSACTION_TIMEOUT;
+  private int escalationCount = Globals.LOCK_ESCALATION_COUNT;
+  private double escalationFraction = Globals.LOCK_ESCALATION_FRACTION;
 
   /**
    * Constructor to create <code>XALockManager</code> objects. Using such
@@ -59,33 +120,65 @@ public class XALockManager implements Serializable
    * regions of any Transactional file.
    * <p>
    * The constructor also invokes a method to get all the locks that have
-   * been held so far, before going any further.
+   * been held so far, before going any further. Inter-process mode is set
+   * as in <code>Globals.LOCK_INTER_PROCESS</code>.
    *
    * @param xaFilename the Transactional file on which to apply locks
    */
   public XALockManager(String xaFilename) {
-    filename += getProcessedName(xaFilename);
-    heldLocks = new LinkedList<XALock>();
+    this(xaFilename, Globals.LOCK_INTER_PROCESS);
+  }
+
+  /**
+   * Constructor to create <code>XALockManager</code> objects, either in
+   * inter-process mode, which opens the sidecar lock file, or reading the
+   * locks held so far from the <em>locks file</em>.
+   *
+   * @param xaFilename the Transactional file on which to apply locks
+   * @param interProcess true to exclude other processes through operating
+   *                     system locks
+   */
+  public XALockManager(String xaFilename, boolean interProcess) {
+    this.xaFilename = xaFilename;
+    filename += getProcessedName(xaFilename, "_locks.log");
+    lockFilename += getProcessedName(xaFilename, "_locks.lck");
+    stripes = new Stripe[Globals.LOCK_STRIPES];
+    allStripes = new int[stripes.length];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+      allStripes[i] = i;
+    }
+    transactions = new ConcurrentHashMap<Xid, TxStats>();
+    waiting = new HashMap<Xid, Waiter>();
+    victimPolicy = VictimPolicy.YOUNGEST;
     try {
-      File f = new File(filename);
-      if (f.exists()) {
-        obtainHeldLocksWith(null);
+      if (interProcess) {
+        processLocks = new ProcessLocks(lockFilename);
+      } else {
+        File f = new File(filename);
+        if (f.exists()) {
+          obtainHeldLocksWith(null);
+        }
       }
     } catch (IOException ioe) {
       ioe.printStackTrace();
     }
   }
 
-  private String getProcessedName(String xaFilename) {
+  private String getProcessedName(String xaFilename, String suffix) {
     xaFilename = xaFilename.replace('/', '_');
     xaFilename = xaFilename.replace('\\', '_');
-    return xaFilename.concat("_locks.log"); 
+    return xaFilename.concat(suffix);
   }
 
   /**
-   * This method opens an existing <em>locks file</em> and retrieves its existing
-   * {@link XALock} objects. These objects now are kept in memory and can be used
-   * for further processing.
+   * This method replays the existing <em>locks file</em> to retrieve the
+   * {@link XALock} objects held so far, by this or another VM. The ones which
+   * do not conflict with a lock in memory are added to the lock tables and
+   * can be used for further processing.
+   * <p>
+   * In inter-process mode there is no <em>locks file</em> and the locks
+   * held by the process are returned.
    *
    * @param xid the global Transaction id that was used when a lock was acquired.
    *            if <code>xid</code> is <code>null</code> then all the locks that
@@ -95,229 +188,369 @@ public class XALockManager implements Serializable
    *         all the locks that are stored in that file will be returned.
    * @exception IOException if an I/O error occurs
    */
-  public synchronized LinkedList<XALock> obtainHeldLocksWith(Xid xid) throws IOException {
-    File file = new File (filename);
-    if (file.exists()) {
-      FileInputStream fIn = new FileInputStream(filename);
-      ObjectInputStream in = new ObjectInputStream(fIn);
-
-      boolean eof = false;
-      do {
-        try {
-          Object obj = in.readObject();
-          XALock xaLock = (XALock) obj;
-          if (xaLock.getXid() == xid || xid == null) {
-            insertLockAt(binarySearch(xaLock), xaLock);
+  public List<XALock> obtainHeldLocksWith(Xid xid) throws IOException {
+    List<XALock> locks = new ArrayList<XALock>();
+    lockStripes(allStripes);
+    try {
+      if (processLocks != null) {
+        for (XALock xaLock : collectLocks()) {
+          if (xid == null || xaLock.isHeldBy(xid))
+            locks.add(xaLock);
+        }
+      } else if (journal != null || new File(filename).exists()) {
+        LockTable stored = new LockTable();
+        getJournal().replay(stored);
+        for (XALock xaLock : stored.getLocks(xid)) {
+          locks.add(xaLock);
+          int[] touched = stripesOf(xaLock);
+          if (!conflictsAny(touched, xaLock)) {
+            for (int i : touched)
+              stripes[i].table.grant(xaLock);
           }
-        } catch (EOFException eofe) {
-          eof = true;
-        } catch (ClassNotFoundException cnfe) {
-          cnfe.printStackTrace();
         }
-      } while (!eof);
-      in.close();
-      fIn.close();
+      }
+    } finally {
+      unlockStripes(allStripes);
     }
-    return heldLocks;
+    return locks;
   }
 
   /**
-   * The method is used to keep the memory locks synchronized
-   * with the ones that already exist in the file. Non existing
-   * ones will be just added to the <em>locks file</em>.
+   * This method tries to set a given <code>lock</code> without waiting.
+   * If the lock to be set is <code>null</code>, or it conflicts with a lock
+   * held or waited for by another Transaction, the outcome is to
+   * <em>REFUSE</em> that lock. Otherwise the lock is merged with the locks of
+   * its Transaction and appended to the <em>locks file</em>, unless the
+   * Transaction already holds the bytes in the requested mode.
+   * <p>
+   * Only the monitors of the stripes the lock touches are taken.
+   *
+   * @param lock the lock trying to set
+   * @return <code>LockResult.GRANTED</code> if the lock can be granted
+   *         or <code>LockResult.REFUSED</code> fail to grant the lock
+   *
+   * @exception IOException if an I/O error occurs while adding new locks
    */
-  private synchronized void syncLocks() {
-    try {
-      FileOutputStream fOut = new FileOutputStream(filename);
-      ObjectOutputStream out = new ObjectOutputStream(fOut);
-
-      for (XALock lock : heldLocks) {
-        out.writeObject(lock);
-      }
-      out.close();
-      fOut.close();
-    } catch (IOException ioe) {
-      ioe.printStackTrace();
-    }
+  public int tryLock(XALock lock) throws IOException {
+    return lock(lock, 0);
   }
 
   /**
-   * This method tries to set a given <code>lock</code>. If the lock to
-   * be set is <code>null</code> the outcome is to <em>REFUSE</em> that
-   * lock. In other cases the lock is added, the <em>locks file</code>
-   * is synchronized, or both apply.
+   * This method sets a given <code>lock</code>, waiting up to
+   * <code>timeout</code> milliseconds for the conflicting locks to be
+   * released. While waiting the lock is queued on the stripes it touches,
+   * so it is granted before any conflicting lock requested after it. The
+   * wait is also bounded by what is left of the transaction timeout of the
+   * Transaction. If the thread is interrupted the lock is refused and the
+   * interrupt status of the thread is kept.
+   * <p>
+   * Before waiting, the Transactions the lock waits for are added to the
+   * wait-for graph. If this closes a cycle, a victim is chosen among the
+   * Transactions of the cycle and its request fails at once.
+   *
    * @param lock the lock trying to set
-   * @return <code>LockResult.GRANTED</code> if the lock can be granted
-   *         or <code>LockResult.REFUSED</code> fail to grant the lock
+   * @param timeout the maximum time to wait in milliseconds; 0 does not wait
+   * @return <code>LockResult.GRANTED</code> if the lock has been granted
+   *         or <code>LockResult.REFUSED</code> if the wait timed out
    *
+   * @exception DeadlockException if the Transaction has been chosen as
+   *            the victim of a deadlock
    * @exception IOException if an I/O error occurs while adding new locks
    */
-  public synchronized int tryLock(XALock lock) throws IOException {
-    if (lock != null) {
-      int index = binarySearch(lock);
-      int vResult = manageLocks(index, lock);
-      if (vResult != Globals.REFUSE_LOCK) { // allowed to add the new lock
-        if (vResult == Globals.ADD_NEW_LOCK || vResult == Globals.MOVE_LOCK_BOUNDS) {
-          if (vResult == Globals.MOVE_LOCK_BOUNDS)
-                syncLocks();
-          insertLockAt(index, lock);
-          FileOutputStream fOut;
-          ObjectOutputStream out;
-          File lockFile = new File(filename);
-
-          if (lockFile.exists()) { // Append the file, write new locks at the end
-            fOut = new FileOutputStream(filename, true);
-            out = new ObjectOutputStreamAppend(fOut);
-          } else {
-            fOut = new FileOutputStream(filename);
-            out = new ObjectOutputStream(fOut);
+  public int lock(XALock lock, long timeout) throws IOException {
+    if (lock == null || lock.getXid() == null)
+      return LockResult.REFUSED;
+
+    int[] touched = stripesOf(lock);
+    TxStats stats = getStats(lock.getXid());
+    long wait = Math.max(timeout, 0);
+    if (transactionTimeout > 0)
+      wait = Math.min(wait, transactionTimeout - stats.waited);
+    long start = System.currentTimeMillis();
+    Waiter waiter = null;
+    boolean changed = false;
+    boolean busy;
+    boolean interrupted = false;
+    try {
+      while (true) {
+        long remaining;
+        Set<Xid> blockers;
+        lockStripes(touched);
+        try {
+          if (waiter != null && waiter.isAborted()) {
+            dequeue(touched, waiter);
+            signalWaiters(touched);
+            throw new DeadlockException("DEADLOCK: victim while waiting for " + lock);
           }
-          out.writeObject(lock);
-          out.close();
-          fOut.close();
-        } else if (vResult == Globals.UPDATE_OLD_LOCK) {
-          syncLocks();
+          blockers = getBlockers(touched, lock, waiter);
+          busy = false;
+          if (blockers.isEmpty()) {
+            if (processLocks == null || processLocks.acquire(lock.getStartPosition(),
+                lock.getLockLength(), lock.getMode() == LockMode.READ)) {
+              dequeue(touched, waiter);
+              for (int i : touched) {
+                LockTable table = stripes[i].table;
+                int before = table.size(lock.getXid());
+                changed |= table.grant(lock);
+                stats.ranges += table.size(lock.getXid()) - before;
+              }
+              if (changed && processLocks == null)
+                getJournal().grant(lock);
+              break;
+            }
+            busy = true; // held by another process
+          }
+          remaining = interrupted ? 0 : wait - (System.currentTimeMillis() - start);
+          if (remaining <= 0) {
+            if (dequeue(touched, waiter))
+              signalWaiters(touched);
+            return LockResult.REFUSED;
+          }
+          if (waiter == null) {
+            waiter = new Waiter(lock);
+            for (int i : touched)
+              stripes[i].waiters.add(waiter);
+          }
+          waiter.reset();
+        } finally {
+          unlockStripes(touched);
         }
-        return LockResult.GRANTED;
+        detectDeadlock(waiter, blockers);
+        try {
+          waiter.await(busy ? Math.min(remaining, Globals.LOCK_POLL_INTERVAL) : remaining);
+        } catch (InterruptedException ie) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (waiter != null) {
+        stats.waited += System.currentTimeMillis() - start;
+        stopWaiting(waiter);
       }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+    if (changed) {
+      stats.locks++;
+      stats.bytes += lock.getLockLength();
+      if (needsEscalation(stats))
+        escalate(lock.getXid(), stats);
+      compactIfNeeded();
     }
-    return LockResult.REFUSED;
+    return LockResult.GRANTED;
   }
 
   /**
-   * Searches the list of locks in memory to find at which index the
-   * <code>newLock</code> should be added. The list is sorted, so
-   * when finds the appropriate index, returns it.
+   * This method releases all the locks that have been held by
+   * a Transaction with the given <code>xid</code>.
+   * <p>
+   * The method removes existing locks from the memory and then
+   * records the release in the <em>locks file</em>, or, in inter-process
+   * mode, unlocks the parts of the lock file no longer held by any
+   * Transaction.
    *
-   * @param newLock the lock to add in the locks list
-   * @return an index at which the <code>newLock</code> is about to be added
-   */
-  private int binarySearch(XALock newLock) {  //todo fix comment
-    int mid;
-    int res = 0;
-    int low = 0;
-    int high = heldLocks.size() - 1;
-
-    while( low <= high )
-    {
-      mid = ( low + high ) / 2;
-      XALock curLock = heldLocks.get(mid);
-      int compRes = curLock.compareTo(newLock);
-
-      if( compRes > 0 ) {
-        low = mid + 1;
-        res = mid+1;
+   * @param xid the global Transaction id which was used for
+   *            the locks trying to release
+   */
+  public void releaseLocks(Xid xid) {
+    boolean released = false;
+    transactions.remove(xid);
+    lockStripes(allStripes);
+    try {
+      List<XALock> freed = processLocks == null ? null : collectLocks(xid);
+      for (Stripe stripe : stripes) {
+        if (stripe.table.release(xid)) {
+          released = true;
+          for (Waiter waiter : stripe.waiters)
+            waiter.signal();
+        }
       }
-      else if( compRes < 0 ) {
-        high = mid - 1;
-        res = mid;
+      if (freed != null) {
+        for (XALock xaLock : freed)
+          releaseProcessLocks(xaLock);
+      } else if (released) {
+        if (isEmpty())
+          getJournal().clear();
+        else
+          getJournal().release(xid);
       }
-      else
-        return mid;
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    } finally {
+      unlockStripes(allStripes);
     }
-    return res;     // NOT_FOUND = -1
+    if (released)
+      compactIfNeeded();
+//    System.out.println("--- Locks participating in transaction with xid=" + xid +
+//        " have been released!");
   }
 
   /**
-   * Inserts the given <code>newLock</code> at the specified <code>index</code>.
+   * Sets the maximum time, in milliseconds, a Transaction may spend waiting
+   * for locks over all its calls to <code>lock</code>; 0 sets no limit
+   * other than the timeout of each call.
    *
-   * @param index the index to add the new lock
-   * @param newLock the lock to be added
+   * @param transactionTimeout the maximum waiting time of a Transaction
    */
-  private void insertLockAt(int index, XALock newLock) {
-    if (index >= 0) {
-      heldLocks.add(index, newLock);
-    }
+  public void setTransactionTimeout(long transactionTimeout) {
+    this.transactionTimeout = transactionTimeout;
   }
 
   /**
-   * The method takes the given <code>xaLock</code> and checks any of its
-   * existing neighbours. If any of the neighbours deny to add the new lock,
-   * it will be <em>REFUSED</em> from being added. Other possible cases is
-   * to return <code>Globals.UPDATE_OLD_LOCK</code>, <code>Globals.MOVE_LOCK_BOUNDS</code>,
-   * or <code>Globals.ADD_NEW_LOCK</code>.
-   * <p>
-   * If one of the neighbours is <code>null</code> the result of the other neighbour is
-   * returned instead. if both of them are <code>null</code> the method returns
-   * <code>Globals.ADD_NEW_LOCK</code>, as this means there are no neighbours and as
-   * a result there are no conflicts, so the new lock can be added safely.
+   * Returns the maximum time, in milliseconds, a Transaction may spend
+   * waiting for locks.
+   * @return the transaction timeout; 0 if there is no limit
+   */
+  public long getTransactionTimeout() {
+    return transactionTimeout;
+  }
+
+  /**
+   * Switches inter-process mode on or off. In inter-process mode the
+   * processes working on the file exclude each other through operating
+   * system locks on a sidecar lock file instead of the <em>locks file</em>.
+   * The mode can only be switched while no lock is held.
    *
-   * @param it the index at which the lock will be added. Before adding the lock this index
-   *           points to the right neighbour, or to a <code>null</code> cell, if the
-   *           neighbour does not exist.
-   * @param xaLock the lock trying to add
-   * @return returns <code>Globals.ADD_NEW_LOCK</code>, <code>Globals.UPDATE_OLD_LOCK</code>,
-   *                 <code>Globals.MOVE_LOCK_BOUNDS</code>, or <code>Globals.REFUSE_LOCK</code>
-   *                 depending on the result of computations.
-   */
-  private int manageLocks(int it, XALock xaLock) {
-    if (xaLock.getXid() != null) {
-      XALock leftLock  = null;
-      XALock rightLock = null;
-
-      if (it > 0)
-        leftLock = heldLocks.get(it-1);
-      if (it < heldLocks.size())
-        rightLock = heldLocks.get(it);
-
-      if (leftLock != null && rightLock != null) {
-        int leftResult = xaLock.adjustWith(leftLock);
-        int rightResult = xaLock.adjustWith(rightLock);
-
-        if (leftResult == Globals.REFUSE_LOCK || rightResult == Globals.REFUSE_LOCK)
-          return Globals.REFUSE_LOCK;
-        else {
-          if (leftResult == Globals.MOVE_LOCK_BOUNDS || rightResult == Globals.MOVE_LOCK_BOUNDS) {
-            return Globals.MOVE_LOCK_BOUNDS;
-          } else if (leftResult == Globals.UPDATE_OLD_LOCK || rightResult == Globals.UPDATE_OLD_LOCK) {
-            return Globals.UPDATE_OLD_LOCK;
-          } else if (leftResult == Globals.ADD_NEW_LOCK || rightResult == Globals.ADD_NEW_LOCK) {
-            return Globals.ADD_NEW_LOCK;
-          }
-        }
-      } else
-      {
-        if (leftLock == null && rightLock == null) {
-          return Globals.ADD_NEW_LOCK;
-        } else if (leftLock == null) {
-          return xaLock.adjustWith(rightLock);
-        } else {
-          return xaLock.adjustWith(leftLock);
-        }
+   * @param interProcess true to exclude other processes through operating
+   *                     system locks
+   * @exception IOException if the lock file cannot be opened
+   * @exception IllegalStateException if locks are held
+   */
+  public void setInterProcess(boolean interProcess) throws IOException {
+    lockStripes(allStripes);
+    try {
+      if (!isEmpty())
+        throw new IllegalStateException("Locks are held on " + filename);
+      if (interProcess && processLocks == null) {
+        processLocks = new ProcessLocks(lockFilename);
+      } else if (!interProcess && processLocks != null) {
+        processLocks.close();
+        processLocks = null;
       }
+    } finally {
+      unlockStripes(allStripes);
     }
-    return Globals.REFUSE_LOCK;
   }
 
   /**
-   * This method releases all the locks that have been held by
-   * a Transaction with the given <code>xid</code>.
-   * <p>
-   * The method removes existing locks from the memory and then
-   * synchronizes the <em>locks file</em>.
+   * Returns true if the manager is in inter-process mode.
+   * @return true if other processes are excluded through operating
+   *         system locks
+   */
+  public boolean isInterProcess() {
+    lockStripes(allStripes);
+    try {
+      return processLocks != null;
+    } finally {
+      unlockStripes(allStripes);
+    }
+  }
+
+  /**
+   * Sets the policy choosing the Transaction to abort when a deadlock is
+   * detected. The default is {@link VictimPolicy#YOUNGEST}.
    *
-   * @param xid the global Transaction id which was used for
-   *            the locks trying to release
+   * @param victimPolicy the policy choosing the victims of deadlocks
    */
-  public void releaseLocks(Xid xid) {
-    XALock[] locks = new XALock[heldLocks.size()];
-    heldLocks.toArray(locks);
-    for (XALock lock : locks) {
-      if (lock.getXid() == xid) {
-        heldLocks.remove(lock);
-      }
+  public void setVictimPolicy(VictimPolicy victimPolicy) {
+    this.victimPolicy = victimPolicy;
+  }
+
+  /**
+   * Returns the policy choosing the victims of deadlocks.
+   * @return the victim policy
+   */
+  public VictimPolicy getVictimPolicy() {
+    return victimPolicy;
+  }
+
+  /**
+   * Returns the number of deadlocks detected so far.
+   * @return the number of deadlocks detected
+   */
+  public long getDeadlocks() {
+    synchronized (waiting) {
+      return deadlocks;
     }
-    syncLocks();
-//    System.out.println("--- Locks participating in transaction with xid=" + xid +
-//        " have been released!");
+  }
+
+  /**
+   * Sets when the locks of a Transaction are escalated to a single lock on
+   * the whole file: once it holds <code>count</code> disjoint ranges in the
+   * lock tables, or has been granted locks on <code>fraction</code> of the
+   * bytes of the file. A threshold of 0 is not checked, which is the
+   * default for both.
+   *
+   * @param count the number of held ranges which escalates a Transaction
+   * @param fraction the fraction of the file size which escalates a
+   *                 Transaction
+   */
+  public void setEscalationThresholds(int count, double fraction) {
+    this.escalationCount = count;
+    this.escalationFraction = fraction;
+  }
+
+  /**
+   * Returns the number of held ranges which escalates a Transaction.
+   * @return the range count threshold; 0 if it is not checked
+   */
+  public int getEscalationCount() {
+    return escalationCount;
+  }
+
+  /**
+   * Returns the fraction of the file size which escalates a Transaction.
+   * @return the file size threshold; 0 if it is not checked
+   */
+  public double getEscalationFraction() {
+    return escalationFraction;
+  }
+
+  /**
+   * Returns the number of Transactions escalated so far.
+   * @return the number of escalations
+   */
+  public long getEscalations() {
+    return escalations;
+  }
+
+  /**
+   * Returns the time at which the Transaction with the given
+   * <code>xid</code> first asked for a lock.
+   *
+   * @param xid the global Transaction id
+   * @return the time in milliseconds, or <code>Long.MAX_VALUE</code> if
+   *         the Transaction has not asked for any lock
+   */
+  public long getStartTime(Xid xid) {
+    TxStats stats = transactions.get(xid);
+    return stats == null ? Long.MAX_VALUE : stats.startTime;
+  }
+
+  /**
+   * Returns the number of locks granted to the Transaction with the
+   * given <code>xid</code>, not counting the ones on bytes it already
+   * held in the requested mode.
+   *
+   * @param xid the global Transaction id
+   * @return the number of locks granted to the Transaction
+   */
+  public long getLockCount(Xid xid) {
+    TxStats stats = transactions.get(xid);
+    return stats == null ? 0 : stats.locks;
   }
 
   /**
    * Returns a list with all the held locks.
-   * @return a list with all the held locks
+   * @return a list with all the held locks, sorted by their start position
    */
-  public LinkedList<XALock> getHeldLocks() {
-    return heldLocks;
+  public List<XALock> getHeldLocks() {
+    lockStripes(allStripes);
+    try {
+      return collectLocks();
+    } finally {
+      unlockStripes(allStripes);
+    }
   }
 
   /**
@@ -325,9 +558,364 @@ public class XALockManager implements Serializable
    * is called by the <code>XAFile#close</code>, as it
    * is no more needed.
    */
-  public void deleteFile() {
+  public synchronized void deleteFile() {
+    if (processLocks != null)
+      processLocks.close();
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
     File f = new File(filename);
     if (f.exists())
       f.delete();
+    new File(filename + LockJournal.OWNER_SUFFIX).delete();
+  }
+
+  /**
+   * Returns the journal kept in the <em>locks file</em>, opening
+   * the file the first time it is needed.
+   */
+  private synchronized LockJournal getJournal() throws IOException {
+    if (journal == null)
+      journal = new LockJournal(filename);
+    return journal;
+  }
+
+  /**
+   * Compacts the journal if it has grown long compared to the lock tables.
+   */
+  private void compactIfNeeded() {
+    LockJournal j = journal;
+    if (j == null || !j.isCompactionDue())
+      return;
+    lockStripes(allStripes);
+    try {
+      List<XALock> locks = collectLocks();
+      if (j.needsCompaction(locks.size()))
+        j.compact(locks);
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    } finally {
+      unlockStripes(allStripes);
+    }
+  }
+
+  /**
+   * Returns the locks of all the stripes, with the copies of the locks
+   * spanning several stripes merged together. The monitors of all the
+   * stripes must be held.
+   */
+  private List<XALock> collectLocks() {
+    return collectLocks(null);
+  }
+
+  /**
+   * Returns the locks of the Transaction with the given <code>xid</code>,
+   * or of all the Transactions if <code>xid</code> is <code>null</code>.
+   * The monitors of all the stripes must be held.
+   */
+  private List<XALock> collectLocks(Xid xid) {
+    LockTable all = new LockTable();
+    for (Stripe stripe : stripes) {
+      for (XALock lock : stripe.table.getLocks(xid))
+        all.grant(lock);
+    }
+    return all.getLocks(null);
+  }
+
+  /**
+   * Unlocks the parts of the lock file overlapping the given released
+   * lock which no Transaction holds any more. The monitors of all the
+   * stripes must be held.
+   */
+  private void releaseProcessLocks(XALock released) throws IOException {
+    for (FileLock fl : processLocks.getLocks(released.getStartPosition(),
+                                             released.getLockLength())) {
+      XALock range = new XALock(null, LockMode.READ, fl.position(), fl.size());
+      if (!overlapsAny(stripesOf(range), range))
+        processLocks.release(fl);
+    }
+  }
+
+  /**
+   * Returns true if no stripe holds any lock. The monitors of all
+   * the stripes must be held.
+   */
+  private boolean isEmpty() {
+    for (Stripe stripe : stripes) {
+      if (!stripe.table.isEmpty())
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the Transaction has crossed an escalation threshold.
+   * The size of the file is only read once the bytes locked by the
+   * Transaction could have crossed the threshold.
+   */
+  private boolean needsEscalation(TxStats stats) {
+    if (escalationCount > 0 && stats.ranges >= Math.max(escalationCount, stats.nextEscalation))
+      return true;
+    if (escalationFraction > 0 && stats.bytes >= stats.nextSizeCheck) {
+      long threshold = (long) (escalationFraction * new File(xaFilename).length());
+      if (threshold > 0 && stats.bytes >= threshold)
+        return true;
+      stats.nextSizeCheck = Math.max(threshold, stats.bytes + 1);
+    }
+    return false;
+  }
+
+  /**
+   * Replaces the locks of the Transaction with the given <code>xid</code>
+   * by a single lock on the whole file, in <code>WRITE</code> mode if it
+   * holds any lock in that mode. Nothing is changed if another Transaction
+   * holds or waits for a conflicting lock; the escalation is then tried
+   * again once the Transaction has doubled its ranges.
+   */
+  private void escalate(Xid xid, TxStats stats) throws IOException {
+    lockStripes(allStripes);
+    try {
+      stats.nextEscalation = stats.ranges * 2;
+      stats.nextSizeCheck = stats.bytes * 2;
+      int mode = LockMode.READ;
+      for (XALock held : collectLocks(xid)) {
+        if (held.getMode() == LockMode.WRITE)
+          mode = LockMode.WRITE;
+      }
+      XALock coarse = new XALock(xid, mode, 0, Long.MAX_VALUE);
+      if (!getBlockers(allStripes, coarse, null).isEmpty())
+        return;
+      if (processLocks != null &&
+          !processLocks.acquire(0, Long.MAX_VALUE, mode == LockMode.READ))
+        return;
+      int ranges = 0;
+      for (Stripe stripe : stripes) {
+        stripe.table.grant(coarse);
+        ranges += stripe.table.size(xid);
+      }
+      stats.ranges = ranges;
+      if (processLocks == null)
+        getJournal().grant(coarse);
+      escalations++;
+    } finally {
+      unlockStripes(allStripes);
+    }
+  }
+
+  private TxStats getStats(Xid xid) {
+    TxStats stats = transactions.get(xid);
+    if (stats == null) {
+      TxStats old = transactions.putIfAbsent(xid, stats = new TxStats());
+      if (old != null)
+        stats = old;
+    }
+    return stats;
+  }
+
+  /**
+   * Returns the Transactions the given <code>lock</code> has to wait for:
+   * the ones holding conflicting locks and the ones waiting for conflicting
+   * locks ahead of <code>waiter</code> (all the queued ones if
+   * <code>waiter</code> is <code>null</code>). A lock waited for by another
+   * Transaction is not in the way of a Transaction already holding part of
+   * its range, as that Transaction is waited for anyway. The monitors of the
+   * touched stripes must be held.
+   *
+   * @return the blocking Transactions; empty if the lock can be granted
+   */
+  private Set<Xid> getBlockers(int[] touched, XALock lock, Waiter waiter) {
+    Set<Xid> blockers = new HashSet<Xid>();
+    for (int i : touched) {
+      Stripe stripe = stripes[i];
+      for (XALock held : stripe.table.getConflicts(lock))
+        blockers.add(held.getXid());
+      for (Waiter ahead : stripe.waiters) {
+        if (ahead == waiter)
+          break;
+        if (ahead.lock.conflictsWith(lock) &&
+            !stripe.table.isHeldBy(lock.getXid(), ahead.lock))
+          blockers.add(ahead.lock.getXid());
+      }
+    }
+    return blockers;
+  }
+
+  /**
+   * Records in the wait-for graph that the Transaction of <code>waiter</code>
+   * waits for the <code>blockers</code> and looks for a cycle through it.
+   * If there is one, the victim chosen by the policy is aborted and woken up.
+   */
+  private void detectDeadlock(Waiter waiter, Set<Xid> blockers) {
+    synchronized (waiting) {
+      Xid xid = waiter.lock.getXid();
+      waiter.blockers = blockers;
+      waiting.put(xid, waiter);
+      LinkedList<Xid> cycle = new LinkedList<Xid>();
+      if (findCycle(xid, xid, cycle, new HashSet<Xid>())) {
+        deadlocks++;
+        Waiter victim = waiting.get(victimPolicy.chooseVictim(cycle, this));
+        if (victim != null)
+          victim.abort();
+      }
+    }
+  }
+
+  /**
+   * Depth-first search of the wait-for graph for a path from
+   * <code>xid</code> back to <code>start</code>, which is left in
+   * <code>path</code>. Aborted waiters are leaving the graph, so the
+   * deadlocks they are part of are already broken.
+   */
+  private boolean findCycle(Xid start, Xid xid, LinkedList<Xid> path, Set<Xid> visited) {
+    Waiter waiter = waiting.get(xid);
+    if (waiter == null || waiter.isAborted() || !visited.add(xid))
+      return false;
+    path.add(xid);
+    for (Xid blocker : waiter.blockers) {
+      if (blocker.equals(start) || findCycle(start, blocker, path, visited))
+        return true;
+    }
+    path.removeLast();
+    return false;
+  }
+
+  private void stopWaiting(Waiter waiter) {
+    synchronized (waiting) {
+      Xid xid = waiter.lock.getXid();
+      if (waiting.get(xid) == waiter)
+        waiting.remove(xid);
+    }
+  }
+
+  /**
+   * Removes the given <code>waiter</code> from the queues of the touched
+   * stripes. Returns false if there is no waiter to remove.
+   */
+  private boolean dequeue(int[] touched, Waiter waiter) {
+    if (waiter == null)
+      return false;
+    for (int i : touched)
+      stripes[i].waiters.remove(waiter);
+    return true;
+  }
+
+  private void signalWaiters(int[] touched) {
+    for (int i : touched) {
+      for (Waiter waiter : stripes[i].waiters)
+        waiter.signal();
+    }
+  }
+
+  private boolean conflictsAny(int[] touched, XALock lock) {
+    for (int i : touched) {
+      if (stripes[i].table.conflictsWith(lock))
+        return true;
+    }
+    return false;
+  }
+
+  private boolean overlapsAny(int[] touched, XALock lock) {
+    for (int i : touched) {
+      if (stripes[i].table.overlaps(lock))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the indexes, in ascending order, of the stripes holding the
+   * segments the given <code>lock</code> touches.
+   */
+  private int[] stripesOf(XALock lock) {
+    long first = lock.getStartPosition() / Globals.LOCK_SEGMENT_SIZE;
+    long last = Math.max(lock.getEndPosition() - 1, lock.getStartPosition()) /
+                Globals.LOCK_SEGMENT_SIZE;
+    if (last - first + 1 >= stripes.length)
+      return allStripes;
+    int[] touched = new int[(int) (last - first + 1)];
+    for (int i = 0; i < touched.length; i++) {
+      touched[i] = (int) ((first + i) % stripes.length);
+    }
+    Arrays.sort(touched);
+    return touched;
+  }
+
+  private void lockStripes(int[] touched) {
+    for (int i : touched)
+      stripes[i].monitor.lock();
+  }
+
+  private void unlockStripes(int[] touched) {
+    for (int i = touched.length - 1; i >= 0; i--)
+      stripes[touched[i]].monitor.unlock();
+  }
+
+  /**
+   * The lock table of a stripe, the queue of the locks waited for in
+   * arrival order and the monitor guarding them.
+   */
+  private static class Stripe
+  {
+    private final ReentrantLock monitor = new ReentrantLock();
+    private final LockTable table = new LockTable();
+    private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+  }
+
+  /**
+   * The start time, waiting time, granted locks, held ranges and escalation
+   * checkpoints of a Transaction.
+   */
+  private static class TxStats
+  {
+    private final long startTime = System.currentTimeMillis();
+    private volatile long waited;
+    private volatile long locks;
+    private volatile long ranges;
+    private volatile long bytes;
+    private volatile long nextEscalation;
+    private volatile long nextSizeCheck;
+  }
+
+  /**
+   * A lock waited for by a thread, signalled when the locks in its
+   * stripes change or when it is chosen as the victim of a deadlock.
+   */
+  private static class Waiter
+  {
+    private final XALock lock;
+    private Set<Xid> blockers;
+    private boolean signalled;
+    private boolean aborted;
+
+    private Waiter(XALock lock) {
+      this.lock = lock;
+    }
+
+    private synchronized void reset() {
+      signalled = aborted;
+    }
+
+    private synchronized void abort() {
+      aborted = true;
+      signal();
+    }
+
+    private synchronized boolean isAborted() {
+      return aborted;
+    }
+
+    private synchronized void signal() {
+      signalled = true;
+      notifyAll();
+    }
+
+    private synchronized void await(long millis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + millis;
+      while (!signalled && millis > 0) {
+        wait(millis);
+        millis = deadline - System.currentTimeMillis();
+      }
+    }
   }
 }
@@ -34,6 +34,7 @@ public class LogEntry //implements Serializable
 {
   private long position;
   private int recordLength;
+  private int offset;
   private byte[] data;
 
   /**
@@ -46,8 +47,24 @@ public class LogEntry //implements Serializable
    * @param data an array of the updated bytes
    */
   public LogEntry(long position, int recordLength, byte[] data) {
+    this(position, data, 0, recordLength);
+  }
+
+  /**
+   * Constructor to create <code>LogEntry</code> objects which refer to a
+   * slice of the given <code>data</code> array, so the updated bytes can
+   * be written to the log without copying them first.
+   *
+   * @param position the position in the Transactional file of the byte
+   *                 found at <code>data[offset]</code>
+   * @param data an array which holds the updated bytes
+   * @param offset the index in <code>data</code> of the first updated byte
+   * @param recordLength the length of the <code>data</code> to read/write
+   */
+  public LogEntry(long position, byte[] data, int offset, int recordLength) {
     this.position = position;
     this.recordLength = recordLength;
+    this.offset = offset;
     this.data = data;
   }
 
@@ -74,4 +91,13 @@ public class LogEntry //implements Serializable
   public byte[] getData() {
     return data;
   }
+
+  /**
+   * Returns the index in the <code>getData()</code> array of the first
+   * updated byte of this entry.
+   * @return the offset of the updated bytes within the data array
+   */
+  public int getOffset() {
+    return offset;
+  }
 }
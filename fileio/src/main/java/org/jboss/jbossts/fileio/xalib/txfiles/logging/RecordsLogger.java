@@ -20,18 +20,24 @@
 package org.jboss.jbossts.fileio.xalib.txfiles.logging;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 
+import org.jboss.jbossts.fileio.xalib.Globals;
+
 /**
  * This class is used to handle important information with log files.
  * <p>
  * The class provides both read and write operations to retrieve or
- * add new information to a log file. To manage this an object of
- * <code>RandomAccessFile</code> class is used and data are written
- * in binary format (<code>writeLong, writeInt</code>). The option
- * given by a <code>RandomAccessFile</code> object to define whether
- * to open the file in <code>r</code> or <code>rw</code> mode is useful
- * to disallow any writes when reading the <code>log</code>.
+ * add new information to the log of a Transaction. The records of all
+ * the Transactions of a Transactional file are kept in a shared
+ * {@link WriteAheadLog}, tagged with the id this object was given when
+ * it was created, so no file is created or deleted per Transaction. The
+ * entries are encoded in binary format into a buffer in memory, which grows
+ * up to <code>Globals.LOG_BUFFER_SIZE</code> bytes and is appended to the
+ * log in a single write when it is full and when the log is flushed.
+ * Only the name of the log and the id are serialized, so the records
+ * can be read back by a recovering process.
  *
  * @author Ioannis Ganotis
  * @version Jun 17, 2008
@@ -39,83 +45,98 @@ import java.util.LinkedList;
 public class RecordsLogger implements Serializable
 {
   private String filename;
-  transient private RandomAccessFile raf;
+  private static final int INITIAL_BUFFER_SIZE = 512;
+
+  private long transactionId;
+  transient private WriteAheadLog log;
+  transient private ByteBuffer buffer;
 
   /**
    * Constructor to create <code>RecordsLogger</code> objects that will
    * allow to handle <code>log</code> related information.
    * <p>
-   * The constructor creates file with the given <code>filename</code>.
-   * The access mode is defined to be in <code>rw</code> mode as when
-   * the <code>XAResourceManager</code> opens the log to write the
-   * <code>updatedBytes</code>. When it finishes, it closes the
-   * <code>log</code> and if in recovery phase, it re-opens the log
-   * in <code>r</code> mode and retrieves all the log entries.   *
+   * The records written through the new object are appended to the given
+   * shared <code>log</code>, tagged with a new Transaction id.
    *
-   * @param filename the name of the log file to store to or retrieve from,
-   *                 necessary information
+   * @param log the write-ahead log of the Transactional file
    * @throws IOException if an I/O error occurs
    */
-  public RecordsLogger(String filename) throws IOException {
-    this.filename = filename;
-    raf = new RandomAccessFile(filename, "rw");
+  public RecordsLogger(WriteAheadLog log) throws IOException {
+    this.log = log;
+    filename = log.getDirectory().getPath();
+    transactionId = log.newTransactionId();
   }
 
   /**
-   * Returns the name used to create this log file.
+   * Returns the name of the directory of the shared log.
    * @return a <code>String</code> which represents the name of
-   *         the log file.
+   *         the log.
    */
   public String getFilename() {
     return filename;
   }
 
   /**
-   * Opens the log file in <code>r</code> mode and reads all the
-   * log entries. After that, the file is closed.
+   * Returns the id which tags the records of this Transaction in the log.
+   * @return the Transaction id used in the log
+   */
+  public long getTransactionId() {
+    return transactionId;
+  }
+
+  /**
+   * Reads all the log entries of this Transaction from the segments
+   * of the log, in the order they were written.
    *
-   * @return a list with all the log entries contained in the log file
+   * @return a list with all the log entries of the Transaction
    * @throws IOException if an I/O error occurs
    */
   public synchronized LinkedList<LogEntry> readAllRecords() throws IOException {
-    close();
-    raf = new RandomAccessFile(filename, "r");
-    LinkedList<LogEntry> records = new LinkedList<LogEntry>();
-    boolean eof = false;
-    do {
-      try {
-        long pos = raf.readLong();
-        int len = raf.readInt();
-        byte[] data = new byte[len];
-        raf.read(data);
-        LogEntry le = new LogEntry(pos, len, data);
-        records.add(le);
-      } catch (EOFException eofe) {
-        eof = true;
-      }
-    } while (!eof);
-    raf.close();
-    return records;
+    return WriteAheadLog.readRecords(new File(filename), transactionId);
   }
 
   /**
-   * Appends the log file by adding a new <code>LogEntry</code> at
-   * the end. It does not actually write the <code>LogEntry</code>
-   * as an object but only the necessary information it contains.
+   * Adds a new <code>LogEntry</code> of this Transaction to the buffer,
+   * appending the buffer to the log first if the entry does not fit.
+   * It does not actually write the <code>LogEntry</code> as an object
+   * but only the necessary information it contains. An entry larger than
+   * the buffer is appended to the log on its own.
    *
    * @param le the <code>LogEntry</code> to write to the log file
    * @throws IOException if an I/O error occurs
    */
   public synchronized void addInfo(LogEntry le) throws IOException {
-    raf.writeLong(le.getPosition());
-    raf.writeInt(le.getRecordLength());
-    raf.write(le.getData());
+    int size = WriteAheadLog.getRecordSize(le);
+    if (buffer == null || buffer.remaining() < size) {
+      int needed = (buffer == null) ? size : buffer.position() + size;
+      if (needed > Globals.LOG_BUFFER_SIZE) {
+        writeBuffer();
+        needed = size;
+      }
+      if (needed > Globals.LOG_BUFFER_SIZE) {
+        ByteBuffer record = ByteBuffer.allocate(size);
+        WriteAheadLog.encode(record, transactionId, le);
+        log.append(transactionId, record);
+        return;
+      }
+      if (buffer == null || buffer.capacity() < needed) {
+        int capacity = (buffer == null) ? INITIAL_BUFFER_SIZE : 2 * buffer.capacity();
+        ByteBuffer grown = ByteBuffer.allocate(
+            Math.min(Math.max(capacity, needed), Globals.LOG_BUFFER_SIZE));
+        if (buffer != null) {
+          buffer.flip();
+          grown.put(buffer);
+        }
+        buffer = grown;
+      }
+    }
+    WriteAheadLog.encode(buffer, transactionId, le);
   }
 
   /**
-   * The method gets the <code>FileDescriptor</code> of the
-   * <code>raf</code> object and calls the <code>sync</code> method
-   * to force log data to be written to disk.
+   * Appends the buffered entries to the log and forces the records
+   * written so far to be written to disk, sharing the synchronization
+   * with the other Transactions which flush the log at the same time.
    * <p>
    * The method is used when preparing to commit, to ensure all the
    * updates have been written to the log.
@@ -123,28 +144,51 @@ public class RecordsLogger implements Serializable
    * @exception IOException if an I/O error occurs
    */
   public void flush() throws IOException {
-    FileDescriptor fd = raf.getFD();
-    fd.sync();
+    synchronized (this) {
+      writeBuffer();
+    }
+    log.sync();
   }
 
   /**
-   * if the <code>raf</code> object exists close it.
+   * Nothing to release: the shared log stays open for the other
+   * Transactions and is closed by its Transactional file.
    */
   public synchronized void close() {
+  }
+
+  /**
+   * Method to mark the Transaction as ended in the log, so its records
+   * are no longer needed and the segments holding them can be reclaimed.
+   * Is used by the <code>XAResourceManager</code> when it has
+   * committed or rolledback. The entries still in the buffer are dropped.
+   * A recovering process opens the log for this, unless it is owned by
+   * another process.
+   */
+  public synchronized void delete() {
+    buffer = null;
+    WriteAheadLog wal = log;
     try {
-      if (raf != null)
-        raf.close();
+      if (wal == null)
+        wal = WriteAheadLog.open(new File(filename));
+      if (wal != null)
+        wal.end(transactionId);
     } catch (IOException ioe) {
-      System.out.println("XXXX Error while processing file: " + filename + " XXXX");
+      System.out.println("XXXX Error while processing log: " + filename + " XXXX");
+    } finally {
+      if (wal != null && log == null)
+        wal.close();
     }
   }
 
   /**
-   * Method to delete the log file with name <code>filename</code>.
-   * Is used by the <code>XAResourceManager</code> when it has
-   * committed or rolledback and the log is not more needed.
+   * Appends the entries in the buffer to the log in a single write and
+   * empties the buffer.
    */
-  public synchronized void delete() {
-    new File(filename).delete();
+  private void writeBuffer() throws IOException {
+    if (buffer != null && buffer.position() > 0) {
+      log.append(transactionId, buffer);
+      buffer.clear();
+    }
   }
 }
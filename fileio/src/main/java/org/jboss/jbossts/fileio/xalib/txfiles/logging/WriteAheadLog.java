@@ -0,0 +1,957 @@
+/*     JBoss, Home of Professional Open Source Copyright 2008, Red Hat
+ *  Middleware LLC, and individual contributors as indicated by the
+ *  @author tags.
+ *     See the copyright.txt in the distribution for a full listing of
+ *  individual contributors. This copyrighted material is made available
+ *  to anyone wishing to use, modify, copy, or redistribute it subject to
+ *  the terms and conditions of the GNU Lesser General Public License, v. 2.1.
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT A WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU Lesser General Public License for more details. You should
+ *  have received a copy of the GNU Lesser General Public License, v.2.1
+ *  along with this distribution; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *  Boston, MA  02110-1301, USA.
+ *
+ *  (C) 2008,
+ *  @author Red Hat Middleware LLC.
+ */
+package org.jboss.jbossts.fileio.xalib.txfiles.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.jboss.jbossts.fileio.xalib.Globals;
+import org.jboss.jbossts.fileio.xalib.txfiles.file.GroupCommit;
+
+/**
+ * This class keeps the write-ahead log shared by the Transactions of a
+ * Transactional file, in place of a log file per Transaction.
+ * <p>
+ * The log is a directory of <em>segments</em>, files named after their
+ * sequence number, to which the records of all the Transactions are
+ * appended. Each record is tagged with the id of the Transaction which
+ * wrote it: an <code>UPDATE</code> record holds updated bytes of the file
+ * and an <code>END</code> record marks a Transaction which has committed
+ * or rolled back.
+ * <p>
+ * Each record is written in a frame which holds a magic number, the log
+ * sequence number (LSN) of the record, a CRC32 checksum, the version of the
+ * format, the type and the length of the record. The LSNs of the records are
+ * consecutive across the segments and each segment starts with a header
+ * holding its sequence number and the LSN of its first record. The log is
+ * read as the longest chain of valid frames with consecutive LSNs, so the
+ * scan stops at the first frame which was torn by a crash, or which was left
+ * from a previous use of a reused segment. The segments are read through a
+ * buffer of <code>Globals.LOG_SCAN_BUFFER_SIZE</code> bytes and the checksums
+ * are computed over the buffer, without reading each record on its own.
+ * <p>
+ * A segment is rolled once it holds <code>Globals.LOG_SEGMENT_SIZE</code>
+ * bytes, or the size given by {@link #setSegmentSize(long)}: it is forced to
+ * the storage device and the records go on in a new segment. Segments are
+ * reclaimed from the oldest one, once all the Transactions which wrote to it
+ * have ended, so the <code>END</code> record of a Transaction is kept as long
+ * as any of its updates. Up to <code>Globals.LOG_SEGMENT_POOL</code>
+ * reclaimed segments are kept and reused for the next segments instead of
+ * creating new files.
+ * <p>
+ * A segment is preallocated to its full size with zeros, and forced with its
+ * metadata, before it is used, so appending to it does not grow the file and
+ * forcing the records at prepare time only writes data blocks. When a new
+ * segment has emptied the pool, a spare segment is preallocated by a
+ * background thread owned by the log, so neither rolling nor the
+ * Transactions which append have to wait for it. If the spare cannot be
+ * prepared, the next roll preallocates its segment itself and reports the
+ * failure if that fails too. Since renaming a
+ * file is not forced to the storage device, the segments are found by their
+ * header rather than their name when the log is scanned. Transactions which
+ * prepare at the same time share a single synchronization of the log through
+ * a {@link GroupCommit}.
+ * <p>
+ * A process owns the log through an operating system lock on a file of its
+ * directory, so another process working on the same Transactional file gets
+ * a log of its own. When the log is opened the segments of a previous run
+ * are scanned; the ones with records of Transactions which have not ended
+ * are kept until the Transactions are recovered.
+ *
+ * @see RecordsLogger
+ */
+public class WriteAheadLog
+{
+  private static final int SEGMENT_MAGIC = 0x57414c53;
+  private static final int RECORD_MAGIC = 0x57414c52;
+  private static final byte VERSION = 1;
+  private static final byte UPDATE = 1;
+  private static final byte END = 2;
+  // magic, version, sequence number, first LSN, checksum of the preceding bytes
+  private static final int HEADER_SIZE = 4 + 1 + 8 + 8 + 4;
+  // magic, LSN, checksum, version, type, length; the checksum covers the
+  // bytes from the version to the end of the record
+  private static final int LSN_OFFSET = 4;
+  private static final int CHECKSUM_OFFSET = 12;
+  private static final int VERSION_OFFSET = 16;
+  private static final int TYPE_OFFSET = 17;
+  private static final int LENGTH_OFFSET = 18;
+  private static final int FRAME_SIZE = 22;
+  // Transaction id, position, length, followed by the updated bytes
+  private static final int UPDATE_SIZE = 8 + 8 + 4;
+  // Transaction id
+  private static final int END_SIZE = 8;
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String FREE_SUFFIX = ".free";
+  private static final String LOCK_FILENAME = "wal.lck";
+  private static final String SPARE_PREFIX = "segment";
+  // bytes of zeros written at a time to preallocate a segment
+  private static final int PREALLOCATION_CHUNK = 64 * 1024;
+
+  private static final Map<File, WriteAheadLog> logs = new HashMap<File, WriteAheadLog>();
+
+  private File dir;
+  private int references;
+  private RandomAccessFile lockFile;
+  private FileLock lock;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private long segment;
+  private long end;
+  private long nextLsn;
+  private long nextTransactionId;
+  private TreeMap<Long, Set<Long>> segmentTransactions;
+  private Map<Long, Set<Long>> transactionSegments;
+  private LinkedList<File> free;
+  private ExecutorService spares;
+  private boolean preparingSpare;
+  private IOException spareFailure;
+  private boolean closed;
+  private long segmentSize = Globals.LOG_SEGMENT_SIZE;
+  // set by a synchronized setter, read without a lock by each sync
+  private volatile GroupCommit groupCommit;
+
+  /**
+   * Opens the log of the Transactional file with the given
+   * <code>xaFilename</code> in the <code>folder</code> of the logs. The log
+   * of the file already opened by this process is shared; a log whose
+   * directory is owned by another process is skipped for the next one.
+   *
+   * @param folder the folder which holds the logs
+   * @param xaFilename the name of the Transactional file
+   * @return the log of the file, to be closed by the caller
+   * @exception IOException if an I/O error occurs
+   */
+  public static WriteAheadLog open(File folder, String xaFilename) throws IOException {
+    String name = xaFilename.replace('/', '_').replace('\\', '_') + "_wal";
+    synchronized (logs) {
+      for (int i = 0; ; i++) {
+        WriteAheadLog log = open(new File(folder, (i == 0) ? name : name + '_' + i));
+        if (log != null)
+          return log;
+      }
+    }
+  }
+
+  /**
+   * Opens the log kept in the given directory, unless another process
+   * owns it.
+   *
+   * @param dir the directory of the log
+   * @return the log, to be closed by the caller, or <code>null</code> if
+   *         another process owns the log
+   * @exception IOException if an I/O error occurs
+   */
+  protected static WriteAheadLog open(File dir) throws IOException {
+    dir = dir.getAbsoluteFile();
+    synchronized (logs) {
+      WriteAheadLog log = logs.get(dir);
+      if (log == null) {
+        dir.mkdirs();
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILENAME), "rw");
+        FileLock lock;
+        try {
+          lock = lockFile.getChannel().tryLock();
+        } catch (IOException ioe) {
+          lockFile.close();
+          throw ioe;
+        }
+        if (lock == null) {
+          lockFile.close();
+          return null;
+        }
+        log = new WriteAheadLog(dir, lockFile, lock);
+        logs.put(dir, log);
+      }
+      log.references++;
+      return log;
+    }
+  }
+
+  /**
+   * Reads the <code>UPDATE</code> records of the Transaction with the given
+   * id from the log kept in the given directory, in the order they were
+   * written, up to the first invalid frame. The log is only read, so it may
+   * be owned by any process.
+   *
+   * @param dir the directory of the log
+   * @param transactionId the id of the Transaction
+   * @return the updates of the Transaction
+   * @exception IOException if an I/O error occurs
+   */
+  protected static LinkedList<LogEntry> readRecords(File dir, long transactionId)
+      throws IOException {
+    LinkedList<LogEntry> records = new LinkedList<LogEntry>();
+    LogScanner scanner = new LogScanner(readSegments(dir));
+    try {
+      while (scanner.next(transactionId)) {
+        if (scanner.type == UPDATE && scanner.transactionId == transactionId)
+          records.add(new LogEntry(scanner.position, scanner.length, scanner.data));
+      }
+    } finally {
+      scanner.close();
+    }
+    return records;
+  }
+
+  /**
+   * Constructor to open the log kept in the given directory, which is
+   * owned by this process through <code>lock</code>. The segments of a
+   * previous run are scanned, renamed after their sequence numbers in case
+   * their renaming was lost, and a new segment is started. The segments
+   * found after the end of the chain of valid frames cannot be read back and
+   * may hold frames with the next LSNs, so they are deleted; the segments
+   * reclaimed before the chain are kept for reuse, unless the chain was
+   * broken before the last segment.
+   */
+  private WriteAheadLog(File dir, RandomAccessFile lockFile, FileLock lock) throws IOException {
+    this.dir = dir;
+    this.lockFile = lockFile;
+    this.lock = lock;
+    segmentTransactions = new TreeMap<Long, Set<Long>>();
+    transactionSegments = new HashMap<Long, Set<Long>>();
+    free = new LinkedList<File>();
+    spares = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "WriteAheadLog spares " + WriteAheadLog.this.dir);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    setGroupCommit(Globals.GROUP_COMMIT_WINDOW, Globals.GROUP_COMMIT_BATCH_SIZE);
+
+    long lastTransactionId = 0;
+    TreeMap<Long, File> found = readSegments(dir);
+    LogScanner scanner = new LogScanner(found);
+    try {
+      while (scanner.next(-1)) {
+        if (!segmentTransactions.containsKey(scanner.segment))
+          segmentTransactions.put(scanner.segment, new HashSet<Long>());
+        if (scanner.type == UPDATE)
+          track(scanner.transactionId, scanner.segment);
+        else
+          ended(scanner.transactionId);
+        lastTransactionId = Math.max(lastTransactionId, scanner.transactionId);
+      }
+    } finally {
+      scanner.close();
+    }
+    Map<File, Long> chain = new HashMap<File, Long>();
+    if (scanner.nextLsn > 0) {
+      for (Map.Entry<Long, File> e : found.subMap(scanner.first, scanner.segment + 1).entrySet()) {
+        chain.put(e.getValue(), e.getKey());
+        if (!segmentTransactions.containsKey(e.getKey()))
+          segmentTransactions.put(e.getKey(), new HashSet<Long>());
+      }
+    }
+    Set<File> reclaimed = new HashSet<File>(found.headMap(scanner.first).values());
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (chain.containsKey(f) || !name.endsWith(SEGMENT_SUFFIX) && !name.endsWith(FREE_SUFFIX))
+          continue;
+        File pooled = name.endsWith(FREE_SUFFIX) ? f : new File(dir, name + FREE_SUFFIX);
+        if (!scanner.broken && reclaimed.contains(f) && free.size() < Globals.LOG_SEGMENT_POOL &&
+            (f.equals(pooled) || f.renameTo(pooled)))
+          free.add(pooled);
+        else
+          f.delete();
+      }
+    }
+    for (Map.Entry<File, Long> e : chain.entrySet()) {
+      File f = segmentFile(dir, e.getValue());
+      if (!e.getKey().equals(f) && !e.getKey().renameTo(f))
+        throw new IOException("Cannot rename the log segment " + e.getKey() + " to " + f);
+    }
+    nextLsn = Math.max(scanner.nextLsn, 1);
+    nextTransactionId = Math.max(lastTransactionId + 1, System.currentTimeMillis() * 1000);
+    startSegment((scanner.nextLsn > 0) ? scanner.segment + 1 : 1);
+    reclaimSegments();
+    requestSpare();
+  }
+
+  /**
+   * Returns the directory in which the segments of the log are kept.
+   * @return the directory of the log
+   */
+  public File getDirectory() {
+    return dir;
+  }
+
+  /**
+   * Returns the group commit through which the log is forced.
+   * @return the group commit of the log, or <code>null</code> if group
+   *         commit has been removed
+   */
+  public GroupCommit getGroupCommit() {
+    return groupCommit;
+  }
+
+  /**
+   * Sets up group commit for the log: Transactions which prepare at the
+   * same time share a single synchronization of the log. Group commit is
+   * set up by default with a window of {@link Globals#GROUP_COMMIT_WINDOW}
+   * milliseconds and a batch size of {@link Globals#GROUP_COMMIT_BATCH_SIZE};
+   * the batch counters start again from zero.
+   *
+   * @param window the maximum time in milliseconds a batch waits for more
+   *               Transactions
+   * @param batchSize the number of Transactions which forces a batch without
+   *                  waiting for the window to expire; <code>0</code> removes
+   *                  group commit so each Transaction forces the log itself
+   * @exception IllegalArgumentException if <code>window</code> or
+   *            <code>batchSize</code> is negative
+   * @see org.jboss.jbossts.fileio.xalib.txfiles.file.XAFile#setGroupCommit(long, int)
+   */
+  public synchronized void setGroupCommit(long window, int batchSize) {
+    if (batchSize == 0) {
+      groupCommit = null;
+    } else {
+      groupCommit = new GroupCommit(window, batchSize) {
+        protected void force() throws IOException {
+          WriteAheadLog.this.force();
+        }
+      };
+    }
+  }
+
+  /**
+   * Sets the size to which the next segments of the log are preallocated;
+   * a segment is rolled once its records would go past this size.
+   *
+   * @param segmentSize the size of a segment in bytes
+   */
+  public synchronized void setSegmentSize(long segmentSize) {
+    if (segmentSize <= HEADER_SIZE)
+      throw new IllegalArgumentException("The size of a log segment must be greater than "
+          + HEADER_SIZE + " bytes");
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Returns the size to which the segments of the log are preallocated.
+   * @return the size of a segment in bytes
+   */
+  public synchronized long getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Returns the number of segments kept in the log, apart from the
+   * reclaimed segments kept for reuse.
+   * @return the number of segments
+   */
+  public synchronized int getSegmentCount() {
+    return segmentTransactions.size();
+  }
+
+  /**
+   * Returns a new id, unique in the log, for a Transaction.
+   * @return the id to tag the records of the Transaction with
+   */
+  protected synchronized long newTransactionId() {
+    return nextTransactionId++;
+  }
+
+  /**
+   * Returns the number of bytes of the <code>UPDATE</code> record of the
+   * given entry.
+   *
+   * @param le the updated bytes
+   * @return the size of the encoded record
+   */
+  protected static int getRecordSize(LogEntry le) {
+    return FRAME_SIZE + UPDATE_SIZE + le.getRecordLength();
+  }
+
+  /**
+   * Encodes the frame of an <code>UPDATE</code> record with the given entry
+   * for the Transaction with the given id at the position of
+   * <code>buf</code>, which must be backed by an array. The checksum is
+   * computed here; the LSN is set when the record is appended.
+   *
+   * @param buf the buffer to encode the record into
+   * @param transactionId the id of the Transaction
+   * @param le the updated bytes
+   */
+  protected static void encode(ByteBuffer buf, long transactionId, LogEntry le) {
+    int start = buf.position();
+    putFrame(buf, UPDATE, UPDATE_SIZE + le.getRecordLength());
+    buf.putLong(transactionId);
+    buf.putLong(le.getPosition());
+    buf.putInt(le.getRecordLength());
+    buf.put(le.getData(), le.getOffset(), le.getRecordLength());
+    putChecksum(buf, start);
+  }
+
+  /**
+   * Appends the <code>UPDATE</code> records encoded in <code>records</code>,
+   * up to its position, for the Transaction with the given id in a single
+   * positional write, setting their LSNs.
+   *
+   * @param transactionId the id of the Transaction
+   * @param records the buffer holding the encoded records
+   * @exception IOException if an I/O error occurs
+   */
+  protected synchronized void append(long transactionId, ByteBuffer records) throws IOException {
+    append(records);
+    track(transactionId, segment);
+  }
+
+  /**
+   * Appends an <code>END</code> record for the Transaction with the given
+   * id, if it has written to the log, and reclaims the segments no longer
+   * needed. The record is not forced to the storage device.
+   *
+   * @param transactionId the id of the Transaction which has committed or
+   *                      rolled back
+   * @exception IOException if an I/O error occurs
+   */
+  protected synchronized void end(long transactionId) throws IOException {
+    if (!transactionSegments.containsKey(transactionId))
+      return;
+    ByteBuffer record = ByteBuffer.allocate(FRAME_SIZE + END_SIZE);
+    putFrame(record, END, END_SIZE);
+    record.putLong(transactionId);
+    putChecksum(record, 0);
+    append(record);
+    ended(transactionId);
+    reclaimSegments();
+  }
+
+  /**
+   * Returns when the records appended before the call have been forced to
+   * the storage device.
+   *
+   * @exception IOException if an I/O error occurs
+   */
+  public void sync() throws IOException {
+    GroupCommit gc = groupCommit;
+    if (gc != null)
+      gc.sync();
+    else
+      force();
+  }
+
+  /**
+   * Closes the log once it has been closed as many times as it has been
+   * opened. If all the Transactions which wrote to it have ended, its
+   * segments are deleted.
+   */
+  public void close() {
+    synchronized (logs) {
+      if (--references > 0)
+        return;
+      logs.remove(dir);
+    }
+    spares.shutdown();
+    try {
+      while (!spares.awaitTermination(1, TimeUnit.SECONDS)) {
+        // a spare is being preallocated
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      closed = true;
+      try {
+        raf.close();
+        if (transactionSegments.isEmpty()) {
+          for (long s : segmentTransactions.keySet())
+            segmentFile(dir, s).delete();
+          for (File f : free)
+            f.delete();
+        }
+        lock.release();
+        lockFile.close();
+      } catch (IOException ioe) {
+        ioe.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Forces the current segment to the storage device. The segments before
+   * it were forced when they were rolled.
+   */
+  private void force() throws IOException {
+    FileChannel current;
+    synchronized (this) {
+      current = channel;
+    }
+    try {
+      current.force(false);
+    } catch (ClosedChannelException cce) {
+      // rolled, and forced, in the meantime
+    }
+  }
+
+  /**
+   * Writes the frames encoded in <code>records</code>, up to its position,
+   * at the end of the current segment, rolling the segment first if they do
+   * not fit. The frames are given the next LSNs.
+   */
+  private void append(ByteBuffer records) throws IOException {
+    int size = records.position();
+    if (end > HEADER_SIZE && end + size > segmentSize)
+      roll();
+    for (int offset = 0; offset < size; offset += FRAME_SIZE + records.getInt(offset + LENGTH_OFFSET))
+      records.putLong(offset + LSN_OFFSET, nextLsn++);
+    records.flip();
+    write(records, end);
+    end += size;
+  }
+
+  /**
+   * Forces the current segment to the storage device and starts the next one.
+   */
+  private void roll() throws IOException {
+    channel.force(false);
+    raf.close();
+    startSegment(segment + 1);
+    reclaimSegments();
+    requestSpare();
+  }
+
+  /**
+   * Starts the segment with the given sequence number, reusing a reclaimed
+   * or spare segment if there is one. A new segment, or a reused one smaller
+   * than the size of a segment, is preallocated first. If this fails after
+   * a spare segment could not be prepared, the failure of the spare is
+   * given as the cause.
+   */
+  private void startSegment(long s) throws IOException {
+    File f = segmentFile(dir, s);
+    File reused = free.poll();
+    if (reused != null && !reused.renameTo(f))
+      reused.delete();
+    raf = new RandomAccessFile(f, "rw");
+    channel = raf.getChannel();
+    try {
+      preallocate(channel, segmentSize);
+    } catch (IOException ioe) {
+      if (spareFailure != null && ioe.getCause() == null)
+        ioe.initCause(spareFailure);
+      throw ioe;
+    }
+    spareFailure = null;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(SEGMENT_MAGIC);
+    header.put(VERSION);
+    header.putLong(s);
+    header.putLong(nextLsn);
+    header.putInt(checksum(header.array(), 0, HEADER_SIZE - 4));
+    header.flip();
+    write(header, 0);
+    segment = s;
+    end = HEADER_SIZE;
+    segmentTransactions.put(s, new HashSet<Long>());
+  }
+
+  /**
+   * Hands the preparation of a spare segment to the background thread of
+   * the log if the pool is empty. No spare is requested after a failure
+   * until a segment has been preallocated again.
+   */
+  private void requestSpare() {
+    if (closed || preparingSpare || spareFailure != null || !free.isEmpty())
+      return;
+    preparingSpare = true;
+    spares.execute(new Runnable() {
+      public void run() {
+        prepareSpare();
+      }
+    });
+  }
+
+  /**
+   * Preallocates a spare segment and adds it to the pool. It runs on the
+   * background thread of the log, without holding the lock of the log; a
+   * failure is kept to be reported by the next roll.
+   */
+  private void prepareSpare() {
+    long size;
+    synchronized (this) {
+      size = segmentSize;
+    }
+    File spare = null;
+    IOException failure = null;
+    try {
+      spare = File.createTempFile(SPARE_PREFIX, FREE_SUFFIX, dir);
+      RandomAccessFile f = new RandomAccessFile(spare, "rw");
+      try {
+        preallocate(f.getChannel(), size);
+      } finally {
+        f.close();
+      }
+    } catch (IOException ioe) {
+      failure = ioe;
+      if (spare != null)
+        spare.delete();
+      spare = null;
+    }
+    synchronized (this) {
+      preparingSpare = false;
+      spareFailure = failure;
+      if (spare != null) {
+        if (closed || free.size() >= Globals.LOG_SEGMENT_POOL)
+          spare.delete();
+        else
+          free.add(spare);
+      }
+    }
+  }
+
+  /**
+   * Fills the file of the given channel with zeros up to <code>size</code>
+   * bytes and forces it with its metadata, so that the blocks of the file
+   * are allocated before records are appended to it. A file which is already
+   * as large is left as it is.
+   */
+  private static void preallocate(FileChannel c, long size) throws IOException {
+    long length = c.size();
+    if (length >= size)
+      return;
+    ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(PREALLOCATION_CHUNK, size - length));
+    while (length < size) {
+      zeros.clear();
+      zeros.limit((int) Math.min(zeros.capacity(), size - length));
+      while (zeros.hasRemaining())
+        length += c.write(zeros, length);
+    }
+    c.force(true);
+  }
+
+  /**
+   * Reclaims the oldest segments as long as all the Transactions which
+   * wrote to them have ended. The current segment is not reclaimed.
+   */
+  private void reclaimSegments() {
+    while (!segmentTransactions.isEmpty()) {
+      Map.Entry<Long, Set<Long>> first = segmentTransactions.firstEntry();
+      if (first.getKey() == segment || !first.getValue().isEmpty())
+        break;
+      segmentTransactions.remove(first.getKey());
+      File f = segmentFile(dir, first.getKey());
+      File reclaimed = new File(dir, first.getKey() + FREE_SUFFIX);
+      if (free.size() < Globals.LOG_SEGMENT_POOL && f.renameTo(reclaimed))
+        free.add(reclaimed);
+      else
+        f.delete();
+    }
+  }
+
+  /**
+   * Records that the Transaction with the given id has written to the
+   * given segment.
+   */
+  private void track(long transactionId, long s) {
+    Set<Long> segments = transactionSegments.get(transactionId);
+    if (segments == null) {
+      segments = new HashSet<Long>();
+      transactionSegments.put(transactionId, segments);
+    }
+    if (segments.add(s))
+      segmentTransactions.get(s).add(transactionId);
+  }
+
+  /**
+   * Records that the Transaction with the given id has ended, so it no
+   * longer holds any segment.
+   */
+  private void ended(long transactionId) {
+    Set<Long> segments = transactionSegments.remove(transactionId);
+    if (segments == null)
+      return;
+    for (long s : segments) {
+      Set<Long> transactions = segmentTransactions.get(s);
+      if (transactions != null)
+        transactions.remove(transactionId);
+    }
+  }
+
+  /**
+   * Puts the header of a frame, leaving its LSN and checksum empty.
+   */
+  private static void putFrame(ByteBuffer buf, byte type, int length) {
+    buf.putInt(RECORD_MAGIC);
+    buf.putLong(0);
+    buf.putInt(0);
+    buf.put(VERSION);
+    buf.put(type);
+    buf.putInt(length);
+  }
+
+  /**
+   * Puts the checksum of the frame which starts at <code>start</code> and
+   * ends at the position of <code>buf</code>.
+   */
+  private static void putChecksum(ByteBuffer buf, int start) {
+    int from = start + VERSION_OFFSET;
+    buf.putInt(start + CHECKSUM_OFFSET,
+        checksum(buf.array(), buf.arrayOffset() + from, buf.position() - from));
+  }
+
+  private static int checksum(byte[] bytes, int off, int len) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, off, len);
+    return (int) crc.getValue();
+  }
+
+  private void write(ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+
+  /**
+   * Returns the files of the given directory which start with a valid
+   * segment header, by the sequence numbers of their headers. A segment
+   * which was reused but whose renaming was lost by a crash is still found;
+   * a file named as a segment is preferred to a reclaimed one.
+   */
+  private static TreeMap<Long, File> readSegments(File dir) throws IOException {
+    TreeMap<Long, File> segments = new TreeMap<Long, File>();
+    File[] files = dir.listFiles();
+    if (files == null)
+      return segments;
+    byte[] header = new byte[HEADER_SIZE];
+    for (File f : files) {
+      String name = f.getName();
+      if (!name.endsWith(SEGMENT_SUFFIX) && !name.endsWith(FREE_SUFFIX))
+        continue;
+      RandomAccessFile in = new RandomAccessFile(f, "r");
+      try {
+        if (in.length() < HEADER_SIZE)
+          continue;
+        in.readFully(header);
+      } finally {
+        in.close();
+      }
+      ByteBuffer buf = ByteBuffer.wrap(header);
+      if (buf.getInt(0) != SEGMENT_MAGIC || buf.get(4) != VERSION ||
+          buf.getInt(HEADER_SIZE - 4) != checksum(header, 0, HEADER_SIZE - 4))
+        continue;
+      long s = buf.getLong(5);
+      File other = segments.get(s);
+      if (other == null || other.getName().endsWith(FREE_SUFFIX))
+        segments.put(s, f);
+    }
+    return segments;
+  }
+
+  /**
+   * Returns the sequence number of the first segment of a log: the segments
+   * of the log are the ones with consecutive sequence numbers up to the
+   * last one, the segments before them were reclaimed.
+   */
+  private static long firstSegment(TreeMap<Long, File> segments) {
+    if (segments.isEmpty())
+      return 0;
+    long s = segments.lastKey();
+    while (segments.containsKey(s - 1))
+      s--;
+    return s;
+  }
+
+  private static File segmentFile(File dir, long s) {
+    return new File(dir, s + SEGMENT_SUFFIX);
+  }
+
+  /**
+   * Reads the records of a log in order, following the chain of valid frames
+   * with consecutive LSNs from the first segment. A segment is read up to
+   * its first invalid frame; the chain goes on in the next segment only if
+   * that segment starts with the next LSN.
+   */
+  private static class LogScanner
+  {
+    private Iterator<Map.Entry<Long, File>> segments;
+    private long first;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long size;
+    private ByteBuffer buf;
+    private long base;
+    private CRC32 crc;
+    // 0 until the first segment header has been read
+    private long nextLsn;
+    // true if the chain stops before the last segment
+    private boolean broken;
+    private long segment;
+    private byte type;
+    private long transactionId;
+    private long position;
+    private int length;
+    private byte[] data;
+
+    private LogScanner(TreeMap<Long, File> found) {
+      first = firstSegment(found);
+      segments = found.tailMap(first).entrySet().iterator();
+      buf = ByteBuffer.allocate(Globals.LOG_SCAN_BUFFER_SIZE);
+      crc = new CRC32();
+    }
+
+    /**
+     * Reads the next record; the updated bytes of an <code>UPDATE</code>
+     * record are only copied if it belongs to the Transaction with the given
+     * id.
+     *
+     * @return false if there are no more records
+     */
+    private boolean next(long wanted) throws IOException {
+      while (true) {
+        if (channel == null && !openSegment())
+          return false;
+        if (readFrame(wanted))
+          return true;
+        closeSegment();
+      }
+    }
+
+    /**
+     * Opens the next segment if its header is valid and continues the chain.
+     */
+    private boolean openSegment() throws IOException {
+      if (broken || !segments.hasNext())
+        return false;
+      Map.Entry<Long, File> next = segments.next();
+      long s = next.getKey();
+      raf = new RandomAccessFile(next.getValue(), "r");
+      channel = raf.getChannel();
+      size = channel.size();
+      base = 0;
+      buf.clear();
+      buf.limit(0);
+      boolean valid = fill(HEADER_SIZE) &&
+          buf.getInt(0) == SEGMENT_MAGIC && buf.get(4) == VERSION && buf.getLong(5) == s &&
+          buf.getInt(HEADER_SIZE - 4) == check(0, HEADER_SIZE - 4) &&
+          (nextLsn == 0 || buf.getLong(13) == nextLsn);
+      if (!valid) {
+        broken = true;
+        closeSegment();
+        return false;
+      }
+      nextLsn = buf.getLong(13);
+      segment = s;
+      buf.position(HEADER_SIZE);
+      return true;
+    }
+
+    /**
+     * Reads the frame at the position of the buffer if it is valid.
+     */
+    private boolean readFrame(long wanted) throws IOException {
+      if (!fill(FRAME_SIZE))
+        return false;
+      int p = buf.position();
+      byte t = buf.get(p + TYPE_OFFSET);
+      int len = buf.getInt(p + LENGTH_OFFSET);
+      int min = (t == UPDATE) ? UPDATE_SIZE : (t == END) ? END_SIZE : -1;
+      if (buf.getInt(p) != RECORD_MAGIC || buf.getLong(p + LSN_OFFSET) != nextLsn ||
+          buf.get(p + VERSION_OFFSET) != VERSION || min < 0 || len < min ||
+          len > size - (base + p) - FRAME_SIZE)
+        return false;
+      if (!fill(FRAME_SIZE + len))
+        return false;
+      p = buf.position();
+      if (buf.getInt(p + CHECKSUM_OFFSET) != check(p + VERSION_OFFSET, FRAME_SIZE - VERSION_OFFSET + len))
+        return false;
+      int q = p + FRAME_SIZE;
+      transactionId = buf.getLong(q);
+      data = null;
+      if (t == UPDATE) {
+        position = buf.getLong(q + 8);
+        length = buf.getInt(q + 16);
+        if (length != len - UPDATE_SIZE)
+          return false;
+        if (transactionId == wanted) {
+          data = new byte[length];
+          System.arraycopy(buf.array(), q + UPDATE_SIZE, data, 0, length);
+        }
+      }
+      type = t;
+      nextLsn++;
+      buf.position(q + len);
+      return true;
+    }
+
+    /**
+     * Reads from the segment until the buffer holds at least <code>n</code>
+     * bytes after its position, growing the buffer if it is too small.
+     *
+     * @return false if the segment ends before
+     */
+    private boolean fill(int n) throws IOException {
+      if (buf.remaining() >= n)
+        return true;
+      base += buf.position();
+      if (buf.capacity() < n) {
+        ByteBuffer grown = ByteBuffer.allocate(n);
+        grown.put(buf);
+        buf = grown;
+      } else {
+        buf.compact();
+      }
+      while (buf.position() < n) {
+        if (channel.read(buf, base + buf.position()) < 0)
+          break;
+      }
+      buf.flip();
+      return buf.remaining() >= n;
+    }
+
+    private int check(int off, int len) {
+      crc.reset();
+      crc.update(buf.array(), off, len);
+      return (int) crc.getValue();
+    }
+
+    private void closeSegment() throws IOException {
+      if (raf != null) {
+        raf.close();
+        raf = null;
+        channel = null;
+      }
+    }
+
+    private void close() throws IOException {
+      closeSegment();
+    }
+  }
+}